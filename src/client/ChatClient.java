@@ -2,26 +2,30 @@ package client;
 
 import java.io.*;
 import java.net.*;
-import java.util.Locale;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.*;
 
 public class ChatClient {
     public static void main(String[] args) throws Exception {
         String host = (args.length > 0) ? args[0] : "127.0.0.1";
         int    port = (args.length > 1) ? Integer.parseInt(args[1]) : 5050;
+        boolean compress = Arrays.asList(args).contains("--compress");
 
         try (Socket socket = new Socket()) {
             socket.connect(new InetSocketAddress(host, port), 5000);
             socket.setTcpNoDelay(true);
 
-            BufferedReader in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            PrintWriter    out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            Wire wire = new Wire(socket);
             BufferedReader console = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
 
             // Reader thread: print all server lines
             Thread reader = new Thread(() -> {
                 String line;
                 try {
-                    while ((line = in.readLine()) != null) {
+                    while ((line = wire.readLine()) != null) {
+                        wire.onServerLine(line);
+                        if (line.equals("PING")) { wire.send("PONG"); continue; } // keepalive
                         System.out.println(line);
                     }
                 } catch (IOException ignored) {}
@@ -33,6 +37,7 @@ public class ChatClient {
 
             System.out.println("Connected to " + host + ":" + port);
             System.out.println("Type: LOGIN <username>");
+            if (compress) wire.send("COMPRESS deflate");
             String line;
             while ((line = console.readLine()) != null) {
                 line = line.trim();
@@ -47,9 +52,64 @@ public class ChatClient {
                     if (parts[2].length() > 500) { System.out.println("ERR message too long"); continue; }
                 }
 
-                out.println(line);
+                wire.send(line);
                 if ("QUIT".equals(cmd)) break;
             }
         }
     }
+
+    /**
+     * Line framing over the socket with optional deflate. Lines are read a byte at a
+     * time from a buffered stream so nothing past "OK compress deflate" is consumed
+     * before the inflater takes over. Lines typed while the COMPRESS answer is pending
+     * are held back and sent once we know which encoding the server expects.
+     */
+    private static final class Wire {
+        private final OutputStream raw;
+        private InputStream in;
+        private OutputStream sink;
+        private boolean compressPending = false;
+        private final List<String> held = new ArrayList<>();
+
+        Wire(Socket socket) throws IOException {
+            in   = new BufferedInputStream(socket.getInputStream());
+            raw  = new BufferedOutputStream(socket.getOutputStream());
+            sink = raw;
+        }
+
+        String readLine() throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') buf.write(b);
+            if (b == -1 && buf.size() == 0) return null;
+            String line = buf.toString(StandardCharsets.UTF_8);
+            return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        }
+
+        synchronized void send(String line) throws IOException {
+            if (compressPending) { held.add(line); return; }
+            write(line);
+            if (line.toUpperCase(Locale.ROOT).startsWith("COMPRESS")) compressPending = true;
+        }
+
+        private void write(String line) throws IOException {
+            sink.write(line.getBytes(StandardCharsets.UTF_8));
+            sink.write('\n');
+            sink.flush();
+        }
+
+        /** Called by the reader thread for every server line, before anything else reads. */
+        synchronized void onServerLine(String line) throws IOException {
+            if (!compressPending) return;
+            if (line.equals("OK compress deflate")) {
+                in   = new BufferedInputStream(new InflaterInputStream(in, new Inflater(true)));
+                sink = new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION, true), 8192, true);
+            } else if (!line.startsWith("ERR usage: COMPRESS") && !line.equals("ERR already compressed")) {
+                return; // something unrelated (a broadcast, another command's ERR) arrived first
+            }
+            compressPending = false;
+            for (String h : held) write(h);
+            held.clear();
+        }
+    }
 }
@@ -3,13 +3,16 @@ package clientsw;
 import java.awt.*;
 import java.awt.TrayIcon.MessageType;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.Socket;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
+import java.util.zip.*;
 import javax.sound.sampled.*;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -18,10 +21,8 @@ import javax.swing.border.LineBorder;
 public class ChatSwingApp extends JFrame {
     // ---------- connection / state ----------
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private Wire wire;
     private String username = "";
-    private volatile boolean serverGreeted = false;
 
     // ---------- status ----------
     private final JLabel status = new JLabel("Disconnected");
@@ -29,6 +30,8 @@ public class ChatSwingApp extends JFrame {
     // ---------- Users sidebar ----------
     private final DefaultListModel<String> usersModel = new DefaultListModel<>();
     private final JList<String> usersList = new JList<>(usersModel);
+    // last presence version applied to usersModel ("<epoch>:<n>", or "0" for none)
+    private String presenceToken = "0";
 
     // ---------- Tabs ----------
     private final JTabbedPane tabs = new JTabbedPane();
@@ -43,6 +46,20 @@ public class ChatSwingApp extends JFrame {
     private final CardLayout dmCards = new CardLayout();
     private final JPanel dmThreadsPanel = new JPanel(dmCards);
     private final Map<String, BubblePanel> dmThreads = new HashMap<>();
+
+    // Conversation history by channel ("#general", "@peer"), the on-disk copy of it for
+    // this server and user, and the channel of every SYNC/HISTORY whose reply is still
+    // coming (replies arrive in request order on the server's bulk lane). EDT only.
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private final ArrayDeque<String> backfills = new ArrayDeque<>();
+    private ConversationCache cache;
+    private List<Inbound> early; // MSG/DM lines that came before the cache was loaded
+    private String host;
+    private int port;
+    private static final int HISTORY_PAGE = 100;
+    private static final int CACHE_ROWS = Integer.getInteger("chat.cacheRows", 5000);
+    private static final int CATCHUP_MAX = Integer.getInteger("chat.catchupMax", 2000);
+    private static final int SCROLL_BACK_PX = 200;
     
     // Unread message tracking
     private final Map<String, Integer> unreadCounts = new HashMap<>();
@@ -55,9 +72,22 @@ public class ChatSwingApp extends JFrame {
     private javax.swing.Timer typingStopper;
     private volatile boolean typingSentStart = false;
 
-    // Attachments (incoming): id -> (buffer, suggested name)
-    private final Map<Long, ByteArrayOutputStream> incomingFiles = new HashMap<>();
-    private final Map<Long, String> incomingFilenames = new HashMap<>();
+    // Attachments: progress strip above the input, and incoming files streamed to disk
+    private final TransferBar transfersBar = new TransferBar();
+    private final Receiver receiver = new Receiver();
+    private final Uploader uploader = new Uploader();
+
+    // Image attachments shown inline, by transfer id, created by whichever of the FILE
+    // line and the finished download reaches the EDT first, and forgotten (temp file and
+    // all) once their row is trimmed or cleared. EDT only.
+    private final Map<Long, Attachment> images = new HashMap<>();
+
+    // MSG/DM lines sent with a client id but not yet confirmed ("OK id <cid> ..."), by cid.
+    // Re-sent with the same id after a reconnect so the server can drop duplicates. EDT only.
+    private final Map<String, PendingSend> pendingSends = new LinkedHashMap<>();
+    private static final long RESEND_WINDOW_MS = 10 * 60_000; // the server forgets ids after ~15 min
+    private final String cidPrefix = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36) + "-";
+    private long cidCounter = 0;
 
     private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("HH:mm");
 
@@ -72,6 +102,24 @@ public class ChatSwingApp extends JFrame {
     private static final Color ME_BUBBLE = new Color(0x2E7D32); // green-ish for self
     private static final Color OTHER_BUB = new Color(0x333333);
     private static final Color BORDER = new Color(0x2A2A2A);
+    private static final Color DANGER = new Color(0xEF5350);
+    private static final Color DANGER_D = new Color(0xE53935);
+    private static final Color ONLINE = new Color(0x81C784);
+    private static final Color USER_SEL = new Color(0x29434E);
+    private static final Color PEER_SEL = new Color(0x263238);
+    private static final Color META_FG = new Color(255, 255, 255, 180);
+
+    // ---- Shared fonts (one instance each, not one per component or render) ----
+    private static final Font UI_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+    private static final Font UI_FONT_BOLD = UI_FONT.deriveFont(Font.BOLD);
+    private static final Font META_FONT = new Font("Segoe UI", Font.PLAIN, 12);
+
+    // ---- Instrumentation (View > Performance overlay / Export performance report) ----
+    private static final PerfMonitor perf = new PerfMonitor();
+    private final PerfOverlay perfOverlay = new PerfOverlay();
+
+    // ---- Thumbnails of received images, shared by every thread ----
+    private static final Thumbnails thumbs = new Thumbnails(perf);
 
     public ChatSwingApp() {
         super("BuzzChat");
@@ -114,10 +162,13 @@ public class ChatSwingApp extends JFrame {
 
         // ----- CENTER: Tabs (bubble chat panels) -----
         generalPanel = new BubblePanel();
+        generalPanel.onOpenImage = this::openImage;
+        generalPanel.onDropImage = this::dropImage;
         generalScroll = new BubbleScroll(generalPanel);
+        watchScrollBack(generalScroll, "#general");
 
         dmPeersList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        dmPeersList.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        dmPeersList.setFont(UI_FONT);
         dmPeersList.setBackground(SURFACE);
         dmPeersList.setForeground(ON_BG);
         PeerCell peerCellRenderer = new PeerCell();
@@ -188,7 +239,7 @@ public class ChatSwingApp extends JFrame {
         btnClear.addActionListener(e -> clearCurrentTab());
         btnQuit.addActionListener(e -> {
             send("QUIT");
-            close();
+            disconnect();
             System.exit(0);
         });
 
@@ -224,12 +275,26 @@ public class ChatSwingApp extends JFrame {
         paintSplit(centerSplit);
 
         setJMenuBar(buildMenuBar());
+        setGlassPane(perfOverlay);
         add(top, BorderLayout.NORTH);
         add(centerSplit, BorderLayout.CENTER);
-        add(bottom, BorderLayout.SOUTH);
+        JPanel south = new JPanel(new BorderLayout());
+        south.setBackground(SURFACE);
+        south.add(transfersBar, BorderLayout.NORTH);
+        south.add(bottom, BorderLayout.CENTER);
+        add(south, BorderLayout.SOUTH);
     }
 
     private void showNotification(String title, String message) {
+        long t0 = System.nanoTime();
+        try {
+            showTrayMessage(title, message);
+        } finally {
+            perf.record("notify", System.nanoTime() - t0);
+        }
+    }
+
+    private void showTrayMessage(String title, String message) {
         if (SystemTray.isSupported()) {
             SystemTray systemTray = SystemTray.getSystemTray();
             TrayIcon trayIcon;
@@ -255,6 +320,7 @@ public class ChatSwingApp extends JFrame {
     }
 
     private void playNotificationSound() {
+        long t0 = System.nanoTime();
         try {
             AudioInputStream audioIn = AudioSystem.getAudioInputStream(getClass().getResource("notification.wav"));
             Clip clip = AudioSystem.getClip();
@@ -262,6 +328,8 @@ public class ChatSwingApp extends JFrame {
             clip.start();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            perf.record("sound", System.nanoTime() - t0);
         }
     }
 
@@ -303,6 +371,8 @@ public class ChatSwingApp extends JFrame {
         JPasswordField passField = passField("", 16);
         JCheckBox chkRegister = check("Register new account");
         chkRegister.setSelected(precheckRegister);
+        JCheckBox chkCompress = check("Compress traffic");
+        chkCompress.setSelected(true);
 
         c.gridx = 0;
         c.gridy = 0;
@@ -327,6 +397,8 @@ public class ChatSwingApp extends JFrame {
         c.gridx = 1;
         c.gridy = 4;
         panel.add(chkRegister, c);
+        c.gridy = 5;
+        panel.add(chkCompress, c);
 
         int ok = JOptionPane.showConfirmDialog(this, panel, "BuzzChat Connect",
                 JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
@@ -354,24 +426,15 @@ public class ChatSwingApp extends JFrame {
             return;
         }
 
-        try {
-            reconnect(host, port);
-            waitForServerGreeting(1500);
-
-            if (chkRegister.isSelected()) {
-                sendAndEcho("REGISTER " + user + " " + pass);
-                sleep(200);
-            }
-
-            sendAndEcho("LOGIN " + user + " " + pass);
-            this.username = user;
-
-            sleep(120);
-            sendAndEcho("USERS");
-        } catch (Exception ex) {
-            toast("Connect failed: " + ex.getMessage());
-            close();
-        }
+        this.host = host;
+        this.port = port;
+        this.username = user;
+        this.password = pass;
+        this.compress = chkCompress.isSelected();
+        this.registerFirst = chkRegister.isSelected();
+        keepOnline = false; // until this login has worked once
+        attempt = 0;
+        connect();
     }
 
     // ===== Buttons / UI helpers (dark) =====
@@ -445,7 +508,7 @@ public class ChatSwingApp extends JFrame {
         f.setForeground(ON_BG);
         f.setCaretColor(ON_BG);
         f.setBorder(new LineBorder(BORDER, 1, true));
-        f.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        f.setFont(UI_FONT);
     }
 
     private JCheckBox check(String s) {
@@ -481,7 +544,7 @@ public class ChatSwingApp extends JFrame {
         b.setBorderPainted(false);
         b.setOpaque(true);
         b.setMargin(new Insets(8, 16, 8, 16));
-        b.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        b.setFont(UI_FONT);
         b.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         b.setBackground(SURFACE2);
         b.setForeground(ON_BG);
@@ -503,8 +566,8 @@ public class ChatSwingApp extends JFrame {
 
     private JButton dangerButton(String text) {
         JButton b = baseButton(text);
-        b.setBackground(new Color(0xEF5350));
-        b.setBorder(new LineBorder(new Color(0xE53935), 1, true));
+        b.setBackground(DANGER);
+        b.setBorder(new LineBorder(DANGER_D, 1, true));
         return b;
     }
 
@@ -540,7 +603,7 @@ public class ChatSwingApp extends JFrame {
         usersCmd.addActionListener(e -> send("USERS"));
         quit.addActionListener(e -> {
             send("QUIT");
-            close();
+            disconnect();
             System.exit(0);
         });
         m.add(connect);
@@ -549,97 +612,444 @@ public class ChatSwingApp extends JFrame {
         m.addSeparator();
         m.add(quit);
         mb.add(m);
+
+        JMenu view = new JMenu("View");
+        view.setForeground(ON_BG);
+        JCheckBoxMenuItem overlay = new JCheckBoxMenuItem("Performance overlay");
+        overlay.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_P,
+                Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx() | InputEvent.SHIFT_DOWN_MASK));
+        overlay.addActionListener(e -> perfOverlay.setVisible(overlay.isSelected()));
+        JMenuItem export = new JMenuItem("Export performance report…");
+        export.addActionListener(e -> exportPerfReport());
+        view.add(overlay);
+        view.add(export);
+        mb.add(view);
         return mb;
     }
 
-    // ===== Connect / reader loop =====
-    private void reconnect(String host, int port) throws IOException {
-    close();
-    
-    // Clear all DM threads to prevent duplicates on reconnection
-    dmThreads.clear();
-    dmThreadsPanel.removeAll();
-    dmPeersModel.clear();
-    unreadCounts.clear();
-    totalUnreadDMs = 0;
-    updateDMTabBadge();
-    
-    socket = new Socket(host, port);
-    socket.setTcpNoDelay(true);
-    in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-    out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-    status.setText("Connected to " + host + ":" + port);
-    serverGreeted = false;
-    Thread t = new Thread(this::readerLoop, "server-reader");
-    t.setDaemon(true);
-    t.start();
-}
+    // ===== Connection state machine =====
+    // OFFLINE -> CONNECTING (socket opened on the "connector" thread) -> LOGGING_IN
+    // (COMPRESS, REGISTER, LOGIN, PRESENCE and FILE_RESUMEs sent back to back; nothing
+    // waits for the greeting) -> ONLINE on "OK logged in". Every step is an EDT event,
+    // so the UI never blocks on the network. Once a login has worked, a dropped
+    // connection goes to WAITING and is retried after a jittered exponential backoff
+    // (-Dchat.reconnectBaseMs, -Dchat.reconnectMaxMs). Quit, a new Connect and a
+    // rejected password stop the retries.
+    private enum Conn { OFFLINE, CONNECTING, LOGGING_IN, ONLINE, WAITING }
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long RECONNECT_BASE_MS = Long.getLong("chat.reconnectBaseMs", 500);
+    private static final long RECONNECT_MAX_MS = Long.getLong("chat.reconnectMaxMs", 30_000);
+    private Conn conn = Conn.OFFLINE;
+    private String password;
+    private boolean compress, registerFirst;
+    private boolean keepOnline; // reconnect when dropped
+    private int attempt;        // reconnects since the last successful login
+    private int connectSeq;     // current attempt; events from older ones are ignored
+    private final javax.swing.Timer retryTimer = new javax.swing.Timer(0, e -> connect());
+
+    private void connect() {
+        retryTimer.stop();
+        close();
+        int seq = ++connectSeq;
+        conn = Conn.CONNECTING;
+        status.setText("Connecting to " + host + ":" + port + "…");
+        String h = host;
+        int p = port;
+        Thread t = new Thread(() -> {
+            try {
+                Socket s = new Socket();
+                s.connect(new java.net.InetSocketAddress(h, p), CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                SwingUtilities.invokeLater(() -> connected(seq, s));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> connectFailed(seq, e));
+            }
+        }, "connector");
+        t.setDaemon(true);
+        t.start();
+    }
 
-    private void readerLoop() {
+    private void connected(int seq, Socket s) {
+        if (seq != connectSeq) { // superseded while connecting
+            try { s.close(); } catch (IOException ignored) { }
+            return;
+        }
+        // DM threads and unread counts stay; after LOGIN each conversation asks only for
+        // what came after the newest id it shows (repeats are dropped by id)
+        for (Conversation c : conversations.values()) c.disconnected();
+        backfills.clear();
+        early = new ArrayList<>(); // until LOGIN has loaded the cache
+        try {
+            socket = s;
+            wire = new Wire(s);
+        } catch (IOException e) {
+            connectFailed(seq, e);
+            return;
+        }
+        conn = Conn.LOGGING_IN;
+        status.setText("Logging in to " + host + ":" + port + "…");
+        Wire w = wire;
+        Thread t = new Thread(() -> readerLoop(w, seq), "server-reader");
+        t.setDaemon(true);
+        t.start();
+
+        if (compress) send("COMPRESS deflate"); // the lines below wait in the Wire until it is answered
+        List<String> login = new ArrayList<>();
+        if (registerFirst) login.add("REGISTER " + username + " " + password);
+        login.add("LOGIN " + username + " " + password);
+        login.add("PRESENCE " + presenceToken);
+        sendAll(login);
+        registerFirst = false;
+        // pick up downloads the last connection dropped half-way
+        receiver.resumeAll();
+    }
+
+    private void connectFailed(int seq, IOException e) {
+        if (seq != connectSeq) return;
+        close();
+        toast("Connect failed: " + e.getMessage());
+        retryOrStop();
+    }
+
+    private void loggedIn() {
+        conn = Conn.ONLINE;
+        keepOnline = true;
+        attempt = 0;
+        status.setText("Online as " + username + " on " + host + ":" + port);
+    }
+
+    // an ERR while LOGGING_IN: REGISTER's "username exists" is expected, LOGIN's are not
+    private void loginError(String err) {
+        if (err.startsWith("unknown user") || err.startsWith("bad password") || err.startsWith("invalid username")) {
+            keepOnline = false; // retrying will not help
+            close();
+            conn = Conn.OFFLINE;
+            toast("Login failed: " + err);
+        } else if (err.startsWith("user already online") || err.startsWith("username taken")) {
+            close(); // likely our own dropped session, not timed out yet
+            retryOrStop();
+        }
+    }
+
+    // the reader saw the connection close
+    private void connectionLost(int seq, String why) {
+        if (seq != connectSeq || conn == Conn.OFFLINE || conn == Conn.WAITING) return;
+        close();
+        toast("Disconnected: " + why);
+        retryOrStop();
+    }
+
+    private void retryOrStop() {
+        if (!keepOnline) {
+            conn = Conn.OFFLINE;
+            return;
+        }
+        // "equal jitter": half the backoff for sure, the other half random, so a server
+        // restart isn't met by every client at the same instant
+        long cap = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempt, 20));
+        long delay = cap / 2 + java.util.concurrent.ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+        attempt++;
+        conn = Conn.WAITING;
+        status.setText(String.format("Reconnecting in %.1f s (attempt %d)…", delay / 1000.0, attempt));
+        retryTimer.setRepeats(false);
+        retryTimer.setInitialDelay((int) delay);
+        retryTimer.restart();
+    }
+
+    // Quit: no more retries
+    private void disconnect() {
+        keepOnline = false;
+        retryTimer.stop();
+        connectSeq++;
+        conn = Conn.OFFLINE;
+        close();
+    }
+
+    private void readerLoop(Wire w, int seq) {
+        String why = "closed by server";
         try {
             String line;
-            while ((line = in.readLine()) != null) {
-                final String L = line;
-                SwingUtilities.invokeLater(() -> handleLine(L));
-                serverGreeted = true;
+            while ((line = w.readLine()) != null) {
+                w.onServerLine(line);
+                if (line.equals("PING")) { // keepalive, answered right here off the EDT
+                    w.send("PONG", false);
+                    continue;
+                }
+                if (uploader.take(line)) continue;
+                Inbound ev = Inbound.parse(line);
+                if (ev != null && !receiver.take(ev)) post(ev);
             }
         } catch (IOException e) {
-            SwingUtilities.invokeLater(() -> toast("Disconnected: " + e.getMessage()));
+            why = (e.getMessage() != null) ? e.getMessage() : e.getClass().getSimpleName();
         } finally {
-            close();
+            uploader.take(Uploader.DISCONNECTED);
+            // behind everything already queued, so the EDT sees the lines before the drop
+            post(Inbound.of(Kind.CLOSED, Integer.toString(seq), why));
+        }
+    }
+
+    // ===== Inbound event queue =====
+    // The reader thread parses lines and queues them; the EDT applies whatever has
+    // queued up at most once per FRAME_MS, so a burst of 2,000 lines costs a few
+    // drains (each ending in one layout and scroll per panel), not 2,000 EDT events.
+    private static final int FRAME_MS = 16;
+    private static final int MAX_EVENTS_PER_FRAME = 4000;
+    private final java.util.concurrent.ConcurrentLinkedQueue<Inbound> inbound = new java.util.concurrent.ConcurrentLinkedQueue<>();
+    private final java.util.concurrent.atomic.AtomicBoolean drainPosted = new java.util.concurrent.atomic.AtomicBoolean();
+    private final javax.swing.Timer frameTimer = new javax.swing.Timer(FRAME_MS, e -> drainInbound());
+    private long lastDrain = 0; // nanoTime, EDT only
+
+    private void post(Inbound ev) {
+        inbound.add(ev);
+        if (drainPosted.compareAndSet(false, true)) SwingUtilities.invokeLater(this::scheduleDrain);
+    }
+
+    private void scheduleDrain() {
+        long wait = FRAME_MS - (System.nanoTime() - lastDrain) / 1_000_000;
+        if (wait <= 0) {
+            drainInbound();
+        } else {
+            frameTimer.setRepeats(false);
+            frameTimer.setInitialDelay((int) wait);
+            frameTimer.restart();
         }
     }
 
-    private void waitForServerGreeting(long maxMs) {
-        long start = System.currentTimeMillis();
-        while (!serverGreeted && System.currentTimeMillis() - start < maxMs) {
-            sleep(20);
+    private void drainInbound() {
+        drainPosted.set(false); // before polling: anything queued from here on posts again
+        lastDrain = System.nanoTime();
+        Inbound ev;
+        for (int n = 0; n < MAX_EVENTS_PER_FRAME && (ev = inbound.poll()) != null; n++) {
+            long t0 = System.nanoTime();
+            handle(ev);
+            perf.record(HANDLE_METRIC[ev.kind.ordinal()], System.nanoTime() - t0);
         }
+        perf.record("drain", System.nanoTime() - lastDrain);
+        if (!inbound.isEmpty() && drainPosted.compareAndSet(false, true)) SwingUtilities.invokeLater(this::scheduleDrain);
     }
 
     // ===== Incoming line handling =====
-    private void handleLine(String L) {
-       if (L.startsWith("MSG ")) {
-    // MSG <id> <from> #general <text...> <timestamp>
-    int i1 = L.indexOf(' ');
-    String rest = (i1 >= 0 ? L.substring(i1 + 1) : "");
-    int i2 = rest.indexOf(' ');
-    int i3 = rest.indexOf(' ', i2 + 1);
-    int i4 = rest.indexOf(' ', i3 + 1);
-    int i5 = rest.indexOf(' ', i4 + 1); // Find timestamp position
-
-    if (i1 >= 0 && i2 > 0 && i3 > 0 && i4 > 0 && i5 > 0) {
-        String from = rest.substring(i2 + 1, i3);
-        String text = rest.substring(i4 + 1, i5);  // Extract message text
-        String timestamp = rest.substring(i5 + 1);  // Extract timestamp
-        appendGeneralBubble(from, text, from.equals(username), timestamp);  // Display the message with the timestamp
-    } else {
-        appendGeneralBubble("?", L.substring(4), false, "Invalid timestamp");
+    private enum Kind {
+        MSG, DM, DM_BAD, USERS, PRESENCE_SNAPSHOT, PRESENCE, NACK, OK_ID, LOGGED_IN, OK, ERR,
+        READ, TYPING, FILE_GENERAL, FILE_ECHO, FILE_DM, FILE_DATA, FILE_END, SYNC_END, HISTORY_END,
+        CLOSED, RAW
     }
-}
-else if (L.startsWith("DM ")) {
-            // DM <id> <from> <text...>
-            String[] p = L.split("\\s+", 4);
-            if (p.length >= 4) {
-                long id = parseLongSafe(p[1]);
-                String from = p[2];
-                String body = p[3];
 
-    boolean selfSent = from.equals(username);
+    // metric name per Kind, so timing an event doesn't build a string
+    private static final String[] HANDLE_METRIC = Arrays.stream(Kind.values()).map(k -> "handle " + k).toArray(String[]::new);
+
+    /** One server line, split up on the reader thread so the EDT only has to apply it. */
+    private static final class Inbound {
+        final Kind kind;
+        final String[] f; // fields, per kind (see parse)
+        final long id;
+        final byte[] data;
+
+        private Inbound(Kind kind, long id, byte[] data, String... f) {
+            this.kind = kind;
+            this.id = id;
+            this.data = data;
+            this.f = f;
+        }
 
-    // Get the timestamp
-    String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+        private static Inbound of(Kind kind, String... f) { return new Inbound(kind, -1, null, f); }
+
+        /** Null for lines that need nothing from the UI. MSG and DM keep the line itself as their last field. */
+        static Inbound parse(String L) {
+            if (L.startsWith("MSG ")) {
+                // MSG <id> <from> #general <text...> <timestamp>
+                int i1 = L.indexOf(' ');
+                String rest = (i1 >= 0 ? L.substring(i1 + 1) : "");
+                int i2 = rest.indexOf(' ');
+                int i3 = rest.indexOf(' ', i2 + 1);
+                int i4 = rest.indexOf(' ', i3 + 1);
+                int i5 = rest.indexOf(' ', i4 + 1); // Find timestamp position
+                if (i1 >= 0 && i2 > 0 && i3 > 0 && i4 > 0 && i5 > 0) {
+                    return new Inbound(Kind.MSG, parseLongSafe(rest.substring(0, i2)), null,
+                            rest.substring(i2 + 1, i3), rest.substring(i4 + 1, i5), rest.substring(i5 + 1), L);
+                }
+                return of(Kind.MSG, "?", L.substring(4), "Invalid timestamp", L);
+            } else if (L.startsWith("DM ")) {
+                // DM <id> <from> <text...>
+                String[] p = L.split("\\s+", 4);
+                if (p.length >= 4) return new Inbound(Kind.DM, parseLongSafe(p[1]), null, p[2], p[3], L);
+                return of(Kind.DM_BAD, L.substring(3));
+            } else if (L.startsWith("SYNC_END ") || L.startsWith("HISTORY_END ")) {
+                // SYNC_END <channel> <lastSent> <head> / HISTORY_END <channel> <firstSent> <head>
+                String[] p = L.split(" ");
+                if (p.length < 4) return null;
+                return of(L.startsWith("S") ? Kind.SYNC_END : Kind.HISTORY_END, p[1], p[2], p[3]);
+            } else if (L.startsWith("USERS ")) {
+                return of(Kind.USERS, L.substring(6).trim());
+            } else if (L.startsWith("PRESENCE_SNAPSHOT ")) {
+                // PRESENCE_SNAPSHOT <token> <csv>
+                String[] p = L.split(" ", 3);
+                return of(Kind.PRESENCE_SNAPSHOT, p[1], p.length > 2 ? p[2] : "");
+            } else if (L.startsWith("PRESENCE ")) {
+                // PRESENCE <fromToken> <toToken> +alice -bob ...
+                String[] p = L.split(" ");
+                return (p.length >= 3) ? of(Kind.PRESENCE, p) : null;
+            } else if (L.startsWith("ACK ")) {
+                return null; // upload progress; nothing to show
+            } else if (L.startsWith("NACK ")) {
+                return of(Kind.NACK, L.substring(5));
+            } else if (L.startsWith("OK id ")) {
+                // OK id <cid> <serverId> [dup]
+                String[] p = L.split(" ");
+                return (p.length >= 4) ? of(Kind.OK_ID, p[2]) : null;
+            } else if (L.startsWith("OK logged in as ")) {
+                return of(Kind.LOGGED_IN, L.substring(3));
+            } else if (L.startsWith("OK ")) {
+                return of(Kind.OK, L.substring(3));
+            } else if (L.startsWith("ERR ")) {
+                return of(Kind.ERR, L.substring(4));
+            } else if (L.startsWith("READ ")) {
+                // READ <id> <by>
+                String[] p = L.split("\\s+");
+                return (p.length >= 3) ? of(Kind.READ, p[2]) : null;
+            } else if (L.startsWith("TYPING ")) {
+                // TYPING <from> #general START|STOP  OR  TYPING <from> <to> START|STOP
+                String[] p = L.split("\\s+");
+                return (p.length >= 4) ? of(Kind.TYPING, p[1], p[2], p[3]) : null;
+            } else if (L.startsWith("FILE ")) {
+                // General: FILE <id> <from> #general <filename> <size>
+                // Echo:    FILE <id> <from> [to <peer>] <filename> <size>
+                // DM in:   FILE <id> <from> <filename> <size>
+                String[] p = L.split("\\s+");
+                if (p.length < 6) return null;
+                long id = parseLongSafe(p[1]);
+                if ("#general".equals(p[3])) return new Inbound(Kind.FILE_GENERAL, id, null, p[2], p[4], p[5]);
+                if ("[to".equals(p[3])) {
+                    if (p.length < 7) return null;
+                    return new Inbound(Kind.FILE_ECHO, id, null, p[4].substring(0, p[4].length() - 1), p[5], p[6]);
+                }
+                return new Inbound(Kind.FILE_DM, id, null, p[2], p[3], p[4]);
+            } else if (L.startsWith("FILE_DATA ")) {
+                // FILE_DATA <id> <base64>: decoded here, off the EDT
+                String[] p = L.split("\\s+", 3);
+                if (p.length < 3) return null;
+                long t0 = System.nanoTime();
+                try {
+                    return new Inbound(Kind.FILE_DATA, parseLongSafe(p[1]), Base64.getDecoder().decode(p[2]));
+                } catch (IllegalArgumentException bad) {
+                    return of(Kind.RAW, L);
+                } finally {
+                    perf.record("decode", System.nanoTime() - t0);
+                }
+            } else if (L.startsWith("FILE_END ")) {
+                String[] p = L.split("\\s+");
+                return (p.length >= 2) ? new Inbound(Kind.FILE_END, parseLongSafe(p[1]), null) : null;
+            }
+            return of(Kind.RAW, L);
+        }
+    }
 
-    // Pass the timestamp to the appendDMBubble method
-    appendDMBubble(from, body, selfSent, timestamp);
+    private void handle(Inbound ev) {
+        String[] f = ev.f;
+        switch (ev.kind) {
+            case MSG:
+                onLine("#general", ev);
+                break;
+            case DM: {
+                // our own DMs only come back in SYNC/HISTORY replies, for the conversation asked about
+                String key = f[0].equals(username) ? backfills.peek() : "@" + f[0];
+                if (key != null && key.startsWith("@")) onLine(key, ev);
+                break;
+            }
+            case SYNC_END:
+                onSyncEnd(f[0], parseLongSafe(f[1]), parseLongSafe(f[2]));
+                break;
+            case HISTORY_END:
+                onHistoryEnd(f[0], parseLongSafe(f[1]));
+                break;
+            case DM_BAD:
+                appendDMBubble("?", f[0], false, tsNow());
+                break;
+            case USERS:
+                updateUsers(f[0]);
+                break;
+            case PRESENCE_SNAPSHOT:
+                presenceToken = f[0];
+                updateUsers(f[1]);
+                break;
+            case PRESENCE:
+                applyPresence(f);
+                break;
+            case NACK:
+                appendGeneralSystem("ERR", "upload chunk rejected: " + f[0]);
+                break;
+            case OK_ID:
+                // the server has it, stop retrying
+                pendingSends.remove(f[0]);
+                break;
+            case LOGGED_IN:
+                loggedIn();
+                appendGeneralSystem("INFO", f[0]);
+                resendPending();
+                openHistory();
+                break;
+            case OK:
+                appendGeneralSystem("INFO", f[0]);
+                break;
+            case ERR:
+                appendGeneralSystem("ERR", f[0]);
+                if (conn == Conn.LOGGING_IN) loginError(f[0]);
+                break;
+            case CLOSED:
+                connectionLost(Integer.parseInt(f[0]), f[1]);
+                break;
+            case READ: {
+                String by = f[0]; // reader is the peer
+                ensureDmThread(by);
+                BubblePanel area = dmThreads.get(by);
+                area.addSystem("(read by " + by + ")");
+                area.scrollToBottom();
+                break;
+            }
+            case TYPING:
+                showTypingBanner(f[0], f[1], f[2]);
+                break;
+            case FILE_GENERAL:
+                if (Thumbnails.isImage(f[1])) {
+                    showImage(generalPanel, ev.id, f[0] + "  •  " + tsNow() + "  #general", f, f[0].equals(username));
+                } else {
+                    appendGeneralSystem("FILE", f[0] + " shared: " + f[1] + " (" + f[2] + " bytes)");
+                }
+                break;
+            case FILE_ECHO:
+                // echo to sender
+                ensureDmThread(f[0]);
+                if (Thumbnails.isImage(f[1])) {
+                    showImage(dmThreads.get(f[0]), ev.id, "You → " + f[0] + "  •  " + tsNow(), f, true);
+                } else {
+                    dmThreads.get(f[0]).addSystem("You sent file: " + f[1] + " (" + f[2] + " bytes)");
+                }
+                break;
+            case FILE_DM:
+                ensureDmThread(f[0]);
+                if (Thumbnails.isImage(f[1])) {
+                    showImage(dmThreads.get(f[0]), ev.id, f[0] + "  •  " + tsNow(), f, false);
+                } else {
+                    dmThreads.get(f[0]).addSystem(f[0] + " sent file: " + f[1] + " (" + f[2] + " bytes)");
+                }
+                break;
+            default:
+                appendGeneralSystem("RAW", f[0]);
+        }
+    }
+
+    private void onDm(long id, String from, String body) {
+        boolean selfSent = from.equals(username);
+        appendDMBubble(from, body, selfSent, tsNow());
+        if (selfSent) return;
 
-    // Check current view state
-    boolean dmTabVisible = (tabs.getSelectedIndex() == 1);
-    String selPeer = dmPeersList.getSelectedValue();
-    boolean viewingThisPeer = (selPeer != null && selPeer.equals(from));
-    boolean windowActive = this.isActive(); // frame focus
+        // Check current view state
+        boolean dmTabVisible = (tabs.getSelectedIndex() == 1);
+        String selPeer = dmPeersList.getSelectedValue();
+        boolean viewingThisPeer = (selPeer != null && selPeer.equals(from));
+        boolean windowActive = this.isActive(); // frame focus
 
-    if (!selfSent) {
         // Always increment unread count and show notification
         incrementUnreadForPeer(from);
         playNotificationSound();
@@ -657,106 +1067,908 @@ else if (L.startsWith("DM ")) {
             send("READ " + id);
         }
     }
-}
- else {
-                appendDMBubble("?", L.substring(3), false, tsNow());
-            }
-        } else if (L.startsWith("USERS ")) {
-            String csv = L.substring(6).trim();
-            updateUsers(csv);
-        } else if (L.startsWith("OK ")) {
-            appendGeneralSystem("INFO", L.substring(3));
-        } else if (L.startsWith("ERR ")) {
-            appendGeneralSystem("ERR", L.substring(4));
-        } else if (L.startsWith("READ ")) {
-            // READ <id> <by>
-            String[] p = L.split("\\s+");
-            if (p.length >= 3) {
-                String by = p[2];
-                String peer = by; // reader is the peer
-                ensureDmThread(peer);
-                BubblePanel area = dmThreads.get(peer);
-                area.addSystem("(read by " + by + ")");
-                area.scrollToBottom();
+
+    // ===== Conversation history =====
+    /**
+     * What one panel shows, by seq: lo..hi with no gaps. New lines go through
+     * {@link #onLine}. Anything at or below hi is a repeat and is dropped.
+     *
+     * After LOGIN each conversation first shows its newest cached page, then catches up
+     * with SYNC from the newest seq it has, or with HISTORY 0 when it has nothing yet.
+     * New lines that arrive meanwhile are held in seq order and shown once the catch-up
+     * is done. Scrolling near the top shows older lines from the cache if it has
+     * them, otherwise it asks for a HISTORY page before lo.
+     */
+    private final class Conversation {
+        final String key; // "#general" or "@peer"
+        final BubblePanel panel;
+        long lo, hi;        // oldest and newest seq on screen; 0 while there are none
+        long catchUpFrom;   // seq the current catch-up started after
+        boolean catchingUp; // SYNC or HISTORY 0 in flight; new lines wait in held
+        boolean paging;     // scroll-back HISTORY in flight; its lines collect in page
+        boolean complete;   // nothing older left to show
+        final TreeMap<Long, Inbound> held = new TreeMap<>();
+        final List<Inbound> page = new ArrayList<>();
+
+        Conversation(String key, BubblePanel panel) {
+            this.key = key;
+            this.panel = panel;
+        }
+
+        // the replies to what was in flight will never come
+        void disconnected() {
+            catchingUp = paging = false;
+            held.clear();
+            page.clear();
+        }
+    }
+
+    private Conversation conversation(String key) {
+        Conversation c = conversations.get(key);
+        if (c == null) {
+            BubblePanel panel = generalPanel;
+            if (!key.equals("#general")) {
+                ensureDmThread(key.substring(1));
+                panel = dmThreads.get(key.substring(1));
             }
-        } else if (L.startsWith("TYPING ")) {
-            // TYPING <from> #general START|STOP  OR  TYPING <from> <to> START|STOP
-            String[] p = L.split("\\s+");
-            if (p.length >= 4) {
-                String from = p[1];
-                String tgt = p[2];
-                String state = p[3];
-                showTypingBanner(from, tgt, state);
-            }
-        } else if (L.startsWith("FILE ")) {
-            // General: FILE <id> <from> #general <filename> <size>
-            // Echo:    FILE <id> <from> [to <peer>] <filename> <size>
-            // DM in:   FILE <id> <from> <filename> <size>
-            String[] p = L.split("\\s+");
-            if (p.length >= 6) {
-                long id = parseLongSafe(p[1]);
-                String from = p[2];
-
-                if ("#general".equals(p[3])) {
-                    String filename = p[4];
-                    String sizeStr = p[5];
-                    incomingFiles.put(id, new ByteArrayOutputStream());
-                    incomingFilenames.put(id, filename);
-                    appendGeneralSystem("FILE", from + " shared: " + filename + " (" + sizeStr + " bytes)");
-                } else if ("[to".equals(p[3])) {
-                    // echo to sender
-                    String peer = p[4].substring(0, p[4].length() - 1);
-                    String filename = p[5];
-                    String sizeStr = p[6];
-                    incomingFiles.put(id, new ByteArrayOutputStream());
-                    incomingFilenames.put(id, filename);
-                    ensureDmThread(peer);
-                    dmThreads.get(peer).addSystem("You sent file: " + filename + " (" + sizeStr + " bytes)");
-                } else {
-                    // DM incoming
-                    String filename = p[3];
-                    String sizeStr = p[4];
-                    incomingFiles.put(id, new ByteArrayOutputStream());
-                    incomingFilenames.put(id, filename);
-                    ensureDmThread(from);
-                    dmThreads.get(from).addSystem(from + " sent file: " + filename + " (" + sizeStr + " bytes)");
+            c = new Conversation(key, panel);
+            conversations.put(key, c);
+        }
+        return c;
+    }
+
+    // after LOGIN: the cache for this server and user, then each conversation's catch-up
+    private void openHistory() {
+        File dir = ConversationCache.dirFor(host, port, username);
+        if (cache != null && cache.dir().equals(dir)) {
+            historyLoaded();
+            return;
+        }
+        if (cache != null) forgetConversations(); // someone else's
+        cache = new ConversationCache(dir, CACHE_ROWS);
+        cache.load(SwingUtilities::invokeLater, this::historyLoaded);
+    }
+
+    // every conversation catches up: one SYNC (or HISTORY 0) each, all sent in one write
+    private void historyLoaded() {
+        List<Inbound> waiting = early;
+        early = null;
+        Set<String> keys = new TreeSet<>(cache.keys());
+        keys.addAll(conversations.keySet());
+        keys.add("#general");
+        List<String> requests = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            Conversation c = conversation(key);
+            if (c.hi == 0) showOlder(c, cache.before(key, 0, HISTORY_PAGE), false);
+            requests.add(catchUpRequest(c));
+        }
+        sendAll(requests);
+        if (waiting != null) for (Inbound ev : waiting) handle(ev);
+    }
+
+    private void catchUp(Conversation c) {
+        if (wire != null) send(catchUpRequest(c));
+    }
+
+    private String catchUpRequest(Conversation c) {
+        c.catchingUp = true;
+        c.catchUpFrom = c.hi;
+        backfills.add(c.key);
+        return (c.hi > 0) ? "SYNC " + c.key + " " + c.hi : "HISTORY " + c.key + " 0 " + HISTORY_PAGE;
+    }
+
+    private void request(String key, String line) {
+        backfills.add(key);
+        send(line);
+    }
+
+    // a different user logged in: their conversations replace these
+    private void forgetConversations() {
+        conversations.clear();
+        generalPanel.clear();
+        for (BubblePanel area : dmThreads.values()) area.clear();
+        dmThreads.clear();
+        dmThreadsPanel.removeAll();
+        dmPeersModel.clear();
+        unreadCounts.clear();
+        totalUnreadDMs = 0;
+        updateDMTabBadge();
+    }
+
+    private void onLine(String key, Inbound ev) {
+        if (early != null) {
+            early.add(ev);
+            return;
+        }
+        Conversation c = conversation(key);
+        if (c.paging && ev.id > 0 && ev.id < c.lo && key.equals(backfills.peek())) {
+            c.page.add(ev);
+        } else if (c.catchingUp) {
+            if (ev.id > 0) c.held.put(ev.id, ev);
+        } else {
+            show(c, ev, true);
+        }
+    }
+
+    private void onSyncEnd(String key, long last, long head) {
+        if (key.equals(backfills.peek())) backfills.poll();
+        Conversation c = conversations.get(key);
+        if (c == null || !c.catchingUp) return;
+        if (head < c.catchUpFrom || head - c.catchUpFrom > CATCHUP_MAX) {
+            // the server lost what we have, or we are too far behind to replay it all:
+            // start over from its newest page
+            c.held.headMap(last, true).clear();
+            cache.reset(key);
+            c.panel.clear();
+            c.lo = c.hi = 0;
+            c.complete = false;
+            c.catchUpFrom = 0;
+            request(key, "HISTORY " + key + " 0 " + HISTORY_PAGE);
+        } else if (last < head) {
+            request(key, "SYNC " + key + " " + last);
+        } else {
+            caughtUp(c);
+        }
+    }
+
+    private void onHistoryEnd(String key, long first) {
+        if (key.equals(backfills.peek())) backfills.poll();
+        Conversation c = conversations.get(key);
+        if (c == null) return;
+        if (c.catchingUp) {
+            caughtUp(c);
+            if (first <= 1) c.complete = true;
+        } else if (c.paging) {
+            c.paging = false;
+            List<String> lines = new ArrayList<>(c.page.size());
+            c.page.sort(Comparator.comparingLong(ev -> ev.id));
+            for (Inbound ev : c.page) lines.add(ev.f[ev.f.length - 1]);
+            c.page.clear();
+            showOlder(c, lines, true);
+            if (first <= 1) c.complete = true;
+        }
+    }
+
+    // everything held goes on screen in one batch; DMs missed while away count as unread
+    private void caughtUp(Conversation c) {
+        c.catchingUp = false;
+        int missed = 0;
+        for (Inbound ev : c.held.values()) {
+            if (ev.kind == Kind.DM && ev.id > c.hi && !ev.f[0].equals(username)) missed++;
+            show(c, ev, false);
+        }
+        c.held.clear();
+        if (missed > 0 && c.catchUpFrom > 0) {
+            String peer = c.key.substring(1);
+            unreadCounts.merge(peer, missed, Integer::sum);
+            totalUnreadDMs += missed;
+            updateDMTabBadge();
+            refreshPeersList();
+        }
+    }
+
+    // live: a new line as it arrives (notifies); otherwise backfill, shown quietly
+    private void show(Conversation c, Inbound ev, boolean live) {
+        if (ev.id > 0) {
+            if (ev.id <= c.hi) return;
+            if (c.lo == 0) c.lo = ev.id;
+            c.hi = ev.id;
+            if (cache != null) cache.append(c.key, ev.f[ev.f.length - 1]);
+        }
+        String[] f = ev.f;
+        boolean self = f[0].equals(username);
+        if (ev.kind == Kind.MSG) {
+            appendGeneralBubble(f[0], f[1], self, f[2]);
+        } else if (live && !self) {
+            onDm(ev.id, f[0], f[1]);
+        } else {
+            c.panel.addBubble(f[0], dmMeta(c, f[0], self), f[1], self, "");
+            c.panel.scrollToBottom();
+        }
+    }
+
+    /** {@code lines}: raw MSG/DM lines older than lo, oldest first. */
+    private void showOlder(Conversation c, List<String> lines, boolean fetched) {
+        List<BubblePanel.Row> rows = new ArrayList<>(lines.size());
+        long first = 0, last = 0;
+        for (String l : lines) {
+            Inbound ev = Inbound.parse(l);
+            if (ev == null || ev.id <= 0 || (c.lo > 0 && ev.id >= c.lo)) continue;
+            String[] f = ev.f;
+            boolean self = f[0].equals(username);
+            String meta = (ev.kind == Kind.MSG) ? f[0] + "  •  " + f[2] + "  #general" : dmMeta(c, f[0], self);
+            rows.add(c.panel.bubbleRow(meta, f[1], self));
+            if (first == 0) first = ev.id;
+            last = ev.id;
+        }
+        if (rows.isEmpty()) return;
+        c.panel.prepend(rows);
+        c.lo = first;
+        if (c.hi == 0) {
+            c.hi = last;
+            c.panel.scrollToBottom();
+        }
+        if (fetched) cache.prepend(c.key, lines);
+    }
+
+    private static String dmMeta(Conversation c, String from, boolean self) {
+        return self ? "You → " + c.key.substring(1) : from;
+    }
+
+    private void watchScrollBack(JScrollPane sc, String key) {
+        sc.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValue() < SCROLL_BACK_PX && sc.isShowing() && cache != null) loadOlder(conversation(key));
+        });
+    }
+
+    private void loadOlder(Conversation c) {
+        if (early != null || c.catchingUp || c.paging || c.complete) return;
+        if (c.lo == 0) { // nothing on screen yet: fetch the newest page
+            catchUp(c);
+            return;
+        }
+        if (c.panel.rowCount() >= BubblePanel.VIEW_ROWS || c.panel.trimmed) return; // the view is full
+        List<String> cached = cache.before(c.key, c.lo, HISTORY_PAGE);
+        if (!cached.isEmpty() && ConversationCache.seqOf(cached.get(cached.size() - 1)) == c.lo - 1) {
+            showOlder(c, cached, false);
+        } else if (c.lo <= 1) {
+            c.complete = true;
+        } else if (wire != null) {
+            c.paging = true;
+            request(c.key, "HISTORY " + c.key + " " + c.lo + " " + HISTORY_PAGE);
+        }
+    }
+
+    // ===== Incoming files =====
+    /**
+     * Attachments being received. FILE_DATA never reaches the EDT: the reader thread
+     * passes each decoded chunk to the "file-writer" thread through a bounded queue,
+     * so a fast sender is held back by TCP rather than by the heap, and the writer
+     * appends it to a temp file. The transfers strip samples the written byte count.
+     * At FILE_END the temp file is moved to wherever the user saves it, except for
+     * images: those stay where they are and are shown as thumbnails in the thread.
+     */
+    private final class Receiver {
+        private final Map<Long, Incoming> active = new java.util.concurrent.ConcurrentHashMap<>();
+        private final java.util.concurrent.BlockingQueue<Runnable> queue = new java.util.concurrent.ArrayBlockingQueue<>(256);
+
+        private final class Incoming {
+            final long id;
+            final String name;
+            final long size;
+            volatile long queued;  // bytes handed to the writer (reader thread); the resume offset
+            volatile long written; // bytes on disk (writer thread)
+            File temp;             // these three under the Incoming's lock
+            OutputStream out;
+            boolean failed;
+            TransferBar.Entry bar; // EDT
+
+            Incoming(long id, String name, long size) {
+                this.id = id;
+                this.name = name;
+                this.size = size;
+            }
+        }
+
+        Receiver() {
+            Thread t = new Thread(() -> {
+                while (true) {
+                    try {
+                        queue.take().run();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
                 }
+            }, "file-writer");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /** Reader thread. True if the event was a file chunk and is dealt with here. */
+        boolean take(Inbound ev) {
+            switch (ev.kind) {
+                case FILE_GENERAL:
+                case FILE_ECHO:
+                case FILE_DM:
+                    begin(ev.id, ev.f[1], parseLongSafe(ev.f[2]));
+                    return false; // the EDT still shows "... shared: ..."
+                case FILE_DATA:
+                    data(ev.id, ev.data);
+                    return true;
+                case FILE_END:
+                    end(ev.id);
+                    return true;
+                default:
+                    return false;
             }
-        } else if (L.startsWith("FILE_DATA ")) {
-            // FILE_DATA <id> <base64>
-            String[] p = L.split("\\s+", 3);
-            if (p.length >= 3) {
-                long id = parseLongSafe(p[1]);
-                ByteArrayOutputStream baos = incomingFiles.get(id);
-                if (baos != null) {
-                    byte[] chunk = Base64.getDecoder().decode(p[2]);
+        }
+
+        /** EDT, after LOGIN: ask for the rest of every download the old connection dropped. */
+        void resumeAll() {
+            for (Incoming in : active.values()) send("FILE_RESUME " + in.id + " " + in.queued);
+        }
+
+        private void begin(long id, String name, long size) {
+            if (active.containsKey(id)) return;
+            Incoming in = new Incoming(id, name, size);
+            active.put(id, in);
+            enqueue(in, () -> {
+                synchronized (in) {
+                    if (in.failed) return;
+                    try {
+                        in.temp = File.createTempFile("buzzchat-", ".part");
+                        in.temp.deleteOnExit();
+                        in.out = new BufferedOutputStream(new FileOutputStream(in.temp), 64 * 1024);
+                    } catch (IOException e) {
+                        fail(in, e);
+                    }
+                }
+            });
+            SwingUtilities.invokeLater(() -> in.bar = transfersBar.add("⬇ " + name, size, () -> in.written, null));
+        }
+
+        private void data(long id, byte[] chunk) {
+            Incoming in = active.get(id);
+            if (in == null) return;
+            in.queued += chunk.length;
+            enqueue(in, () -> {
+                synchronized (in) {
+                    if (in.failed) return;
+                    try {
+                        in.out.write(chunk);
+                        in.written += chunk.length;
+                    } catch (IOException e) {
+                        fail(in, e);
+                    }
+                }
+            });
+        }
+
+        private void end(long id) {
+            Incoming in = active.get(id);
+            if (in == null) return;
+            enqueue(in, () -> {
+                synchronized (in) {
+                    if (in.failed) return;
                     try {
-                        baos.write(chunk);
-                    } catch (IOException ignored) {
+                        in.out.close();
+                    } catch (IOException e) {
+                        fail(in, e);
+                        return;
                     }
                 }
+                SwingUtilities.invokeLater(() -> save(in));
+            });
+        }
+
+        // blocks the reader while the writer is a full queue behind; a reader interrupted
+        // here can't hand the work over, so the transfer fails instead of losing a chunk
+        private void enqueue(Incoming in, Runnable r) {
+            try {
+                queue.put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(in, new java.io.InterruptedIOException("interrupted"));
             }
-        } else if (L.startsWith("FILE_END ")) {
-            // FILE_END <id> -> ask to save
-            String[] p = L.split("\\s+");
-            if (p.length >= 2) {
-                long id = parseLongSafe(p[1]);
-                ByteArrayOutputStream baos = incomingFiles.remove(id);
-                String fname = incomingFilenames.remove(id);
-                if (baos != null) {
-                    JFileChooser fc = makeDarkFileChooser("Save received file", fname);
-                    if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-                        try (FileOutputStream fos = new FileOutputStream(fc.getSelectedFile())) {
-                            baos.writeTo(fos);
-                            toast("Saved file: " + fc.getSelectedFile().getAbsolutePath());
-                        } catch (IOException ex) {
-                            toast("Failed to save file: " + ex.getMessage());
-                        }
+        }
+
+        // writer thread, or the reader if enqueue was interrupted; only the first call counts
+        private void fail(Incoming in, IOException e) {
+            synchronized (in) {
+                if (in.failed) return;
+                in.failed = true;
+                try {
+                    if (in.out != null) in.out.close();
+                } catch (IOException ignored) {
+                }
+                if (in.temp != null) in.temp.delete();
+            }
+            active.remove(in.id, in);
+            SwingUtilities.invokeLater(() -> {
+                transfersBar.remove(in.bar);
+                if (Thumbnails.isImage(in.name)) imageArrived(in.id, null);
+                toast("Receiving " + in.name + " failed: " + e.getMessage());
+            });
+        }
+
+        // EDT: FILE_END -> images stay in the temp file and show inline; anything else
+        // asks where to save and moves the temp file there
+        private void save(Incoming in) {
+            active.remove(in.id, in);
+            transfersBar.remove(in.bar);
+            if (Thumbnails.isImage(in.name)) {
+                imageArrived(in.id, in.temp);
+                return;
+            }
+            JFileChooser fc = makeDarkFileChooser("Save received file", in.name);
+            if (fc.showSaveDialog(ChatSwingApp.this) == JFileChooser.APPROVE_OPTION) {
+                try {
+                    java.nio.file.Files.move(in.temp.toPath(), fc.getSelectedFile().toPath(),
+                            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    toast("Saved file: " + fc.getSelectedFile().getAbsolutePath());
+                } catch (IOException ex) {
+                    toast("Failed to save file: " + ex.getMessage());
+                    in.temp.delete();
+                }
+            } else {
+                in.temp.delete();
+            }
+        }
+    }
+
+    /** A received image as shown in a thread: its row, and its temp file once it is all here. EDT only. */
+    private static final class Attachment {
+        final long id;
+        String name;
+        BubblePanel panel; // null until the FILE line is handled
+        File file;         // null while receiving
+        boolean broken;    // the download failed
+        boolean dropped;   // its row went while it was still being received
+
+        Attachment(long id) { this.id = id; }
+
+        void arrived(File f) {
+            file = f;
+            broken = (f == null);
+            if (panel != null) panel.repaint();
+        }
+    }
+
+    private Attachment attachment(long id) {
+        return images.computeIfAbsent(id, Attachment::new);
+    }
+
+    // EDT: the download of an image ended; f is null if it failed
+    private void imageArrived(long id, File f) {
+        Attachment a = attachment(id);
+        if (a.dropped) {
+            images.remove(id);
+            if (f != null) f.delete();
+            return;
+        }
+        a.arrived(f);
+    }
+
+    // EDT: the row showing a was trimmed or cleared; nothing can open it again
+    private void dropImage(Attachment a) {
+        if (a.file == null && !a.broken) {
+            a.dropped = true; // imageArrived finishes the job
+            return;
+        }
+        images.remove(a.id);
+        if (a.file != null) {
+            thumbs.forget(a.file);
+            a.file.delete();
+        }
+    }
+
+    // f: {from|peer, filename, size}
+    private void showImage(BubblePanel panel, long id, String meta, String[] f, boolean self) {
+        Attachment a = attachment(id);
+        if (a.panel != null) return; // the FILE line again, after a FILE_RESUME
+        a.name = f[1];
+        a.panel = panel;
+        panel.addImage(meta, a, self);
+        panel.scrollToBottom();
+    }
+
+    // EDT: a thumbnail was clicked. Decodes the full image off the EDT, then shows it.
+    private void openImage(Attachment a) {
+        if (a.file == null) {
+            toast(a.broken ? a.name + " did not arrive." : a.name + " is still being received.");
+            return;
+        }
+        if (thumbs.failed(a.file)) {
+            saveAttachment(a);
+            return;
+        }
+        status.setText("Opening " + a.name + "…");
+        thumbs.full(a.file, img -> {
+            status.setText(" ");
+            if (img == null) {
+                toast("Can't open " + a.name + " as an image.");
+                saveAttachment(a);
+                return;
+            }
+            JDialog d = new JDialog(this, a.name + "  (" + img.getWidth() + " × " + img.getHeight() + ")", false);
+            JLabel pic = new JLabel(new ImageIcon(img));
+            pic.setHorizontalAlignment(SwingConstants.CENTER);
+            JScrollPane sp = new BubbleScroll(pic);
+            sp.getHorizontalScrollBar().setUnitIncrement(24);
+            JButton save = primaryButton("Save…");
+            save.addActionListener(e -> saveAttachment(a));
+            JPanel south = panel(new FlowLayout(FlowLayout.RIGHT));
+            south.add(save);
+            d.getContentPane().setBackground(BG);
+            d.add(sp, BorderLayout.CENTER);
+            d.add(south, BorderLayout.SOUTH);
+            Rectangle screen = getGraphicsConfiguration().getBounds();
+            d.setSize(Math.min(img.getWidth() + 40, screen.width * 4 / 5),
+                      Math.min(img.getHeight() + 100, screen.height * 4 / 5));
+            d.setLocationRelativeTo(this);
+            d.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) { pic.setIcon(null); } // let the pixels go
+            });
+            d.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+            d.setVisible(true);
+        });
+    }
+
+    // copies, not moves: the thumbnail and the viewer still read the temp file
+    private void saveAttachment(Attachment a) {
+        JFileChooser fc = makeDarkFileChooser("Save received file", a.name);
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        try {
+            java.nio.file.Files.copy(a.file.toPath(), fc.getSelectedFile().toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            toast("Saved file: " + fc.getSelectedFile().getAbsolutePath());
+        } catch (IOException ex) {
+            toast("Failed to save file: " + ex.getMessage());
+        }
+    }
+
+    // ===== Outgoing files =====
+    /**
+     * Attachments being sent, one at a time on the "file-upload" thread so the EDT
+     * never touches file contents. The file is read through one reusable buffer and
+     * sent as CHUNK lines, keeping up to UPLOAD_WINDOW bytes unacknowledged. The
+     * transfer is therefore paced by the server's ACKs, not by a round trip per chunk.
+     * A crc or size NACK rewinds to the committed offset the server reports.
+     * The "offset" NACKs that follow it for chunks already in flight are ignored.
+     *
+     * Each upload carries a CID. After a reconnect the worker continues with
+     * ATTACH_RESUME <uploadId>, or repeats the CID ATTACH if no id came back yet, and
+     * carries on from the server's committed offset. The server answers "OK id ... dup"
+     * if the file went out already. Chat lines keep flowing on the same connection in
+     * between chunks.
+     */
+    private final class Uploader {
+        static final String DISCONNECTED = "\u0000disconnected";
+        private static final int CHUNK = 3072;
+        private static final int UPLOAD_WINDOW = 16 * CHUNK;
+        private static final long REPLY_TIMEOUT_MS = 30_000;
+
+        private final java.util.concurrent.BlockingQueue<Upload> jobs = new java.util.concurrent.LinkedBlockingQueue<>();
+        private final java.util.concurrent.BlockingQueue<String> replies = new java.util.concurrent.LinkedBlockingQueue<>();
+        private volatile Upload current;
+
+        private final class Upload {
+            final File file;
+            final String target, cid;
+            final long size;
+            final boolean stored;
+            volatile long acked;
+            volatile boolean cancelled;
+            String uploadId;       // from "OK attach begin"; worker thread
+            TransferBar.Entry bar; // EDT
+
+            Upload(File file, String target, String cid) {
+                this.file = file;
+                this.target = target;
+                this.cid = cid;
+                this.size = file.length();
+                this.stored = FileTypes.isPrecompressed(file.getName());
+            }
+        }
+
+        Uploader() {
+            Thread t = new Thread(this::run, "file-upload");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /** EDT. */
+        void submit(File f, String target, String cid) {
+            Upload u = new Upload(f, target, cid);
+            u.bar = transfersBar.add("⬆ " + f.getName(), u.size, () -> u.acked, () -> u.cancelled = true);
+            jobs.add(u);
+        }
+
+        /** Reader thread: keeps the replies that belong to the running upload away from the UI. */
+        boolean take(String line) {
+            Upload u = current;
+            if (line == DISCONNECTED || line.startsWith("OK logged in as ")) {
+                if (u != null) replies.add(line);
+                return false;
+            }
+            if (u == null) return false;
+            if (line.startsWith("ACK ") || line.startsWith("NACK ") || line.startsWith("OK attach begin ")) {
+                replies.add(line);
+                return true;
+            }
+            if (line.startsWith("OK resume ") && !receiver.active.containsKey(parseLongSafe(line.split(" ")[2]))) {
+                replies.add(line);
+                return true;
+            }
+            if (line.startsWith("OK file sent ") || line.startsWith("OK id " + u.cid + " ")
+                    || line.startsWith("ERR ") || line.equals("OK attach aborted")) {
+                replies.add(line); // and shown as usual
+            }
+            return false;
+        }
+
+        private void run() {
+            while (true) {
+                Upload u;
+                try {
+                    u = jobs.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (u.cancelled) {
+                    SwingUtilities.invokeLater(() -> transfersBar.remove(u.bar));
+                    continue;
+                }
+                replies.clear();
+                current = u;
+                String outcome;
+                try (FileInputStream in = new FileInputStream(u.file)) {
+                    outcome = upload(u, in.getChannel());
+                } catch (IOException e) {
+                    outcome = "Attach failed: " + e.getMessage();
+                    if (u.uploadId != null) line("ATTACH_ABORT", false);
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    current = null;
+                }
+                String msg = outcome;
+                SwingUtilities.invokeLater(() -> {
+                    transfersBar.remove(u.bar);
+                    if (msg != null) toast(msg);
+                });
+            }
+        }
+
+        // null when sent; otherwise what to tell the user
+        private String upload(Upload u, java.nio.channels.FileChannel ch) throws IOException, InterruptedException {
+            byte[] raw = new byte[CHUNK];
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(raw);
+            byte[] b64 = new byte[(CHUNK + 2) / 3 * 4];
+            Base64.Encoder enc = Base64.getEncoder();
+            CRC32 crc = new CRC32();
+
+            long next = start(u, "CID " + u.cid + " ATTACH " + u.target + " " + u.file.getName() + " " + u.size);
+            if (next < 0) return (next == DONE) ? null : "Attach of " + u.file.getName() + " was refused";
+            while (u.acked < u.size) {
+                if (u.cancelled) {
+                    line("ATTACH_ABORT", false);
+                    return "Upload of " + u.file.getName() + " cancelled";
+                }
+                // fill the window
+                while (next < u.size && next - u.acked < UPLOAD_WINDOW) {
+                    buf.clear();
+                    buf.limit((int) Math.min(CHUNK, u.size - next));
+                    while (buf.hasRemaining()) {
+                        if (ch.read(buf, next + buf.position()) < 0) throw new IOException("file shrank while sending");
                     }
+                    int n = buf.position();
+                    crc.reset();
+                    crc.update(raw, 0, n);
+                    int len = enc.encode(n == CHUNK ? raw : Arrays.copyOf(raw, n), b64);
+                    if (!line("CHUNK " + next + " " + Long.toHexString(crc.getValue()) + " "
+                            + new String(b64, 0, len, java.nio.charset.StandardCharsets.ISO_8859_1), u.stored)) break;
+                    next += n;
+                }
+                String r = replies.poll(REPLY_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (r == null || r == DISCONNECTED) {
+                    next = reconnected(u);
+                    if (next < 0) return (next == DONE) ? null : "Upload of " + u.file.getName() + " lost";
+                } else if (r.startsWith("ACK ")) {
+                    u.acked = lastLong(r);
+                } else if (r.startsWith("NACK ")) {
+                    // NACK <uploadId> <committed> offset|crc|size
+                    String[] p = r.split(" ");
+                    if (p.length >= 4 && "size".equals(p[3])) return "Upload of " + u.file.getName() + " rejected (size)";
+                    if (p.length >= 4 && "crc".equals(p[3])) next = u.acked = parseLongSafe(p[2]);
+                }
+                // other replies (an ERR for a chat line typed meanwhile, say) are not ours
+            }
+            line("ATTACH_END", false);
+            while (true) {
+                String r = replies.poll(REPLY_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (r == null || r == DISCONNECTED) {
+                    // did ATTACH_END make it? the CID answers either way
+                    long again = reconnected(u);
+                    if (again == DONE) return null;
+                    if (again < 0) return "Upload of " + u.file.getName() + " lost";
+                    if (again == u.size) line("ATTACH_END", false);
+                    else return "Upload of " + u.file.getName() + " restarted at " + again + "; please retry";
+                } else if (r.startsWith("OK file sent ") || r.startsWith("OK id ")) {
+                    return null;
+                } else if (r.startsWith("ERR size mismatch")) {
+                    return null; // already shown
+                }
+            }
+        }
+
+        private static final long DONE = -1, REFUSED = -2;
+
+        /**
+         * Sends the ATTACH (or resume) line and waits for the server's offset.
+         * DONE if the server already has the file, REFUSED if it turns the attach down or doesn't answer.
+         */
+        private long start(Upload u, String cmd) throws InterruptedException {
+            if (!line(cmd, false)) return REFUSED;
+            while (true) {
+                String r = replies.poll(REPLY_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (r == null || r == DISCONNECTED) return REFUSED;
+                if (r.startsWith("OK attach begin ")) {
+                    String id = r.substring("OK attach begin ".length());
+                    int semi = id.indexOf(';');
+                    u.uploadId = (semi >= 0 ? id.substring(0, semi) : id).trim();
+                    return u.acked = 0;
+                }
+                if (r.startsWith("OK resume ")) {
+                    String[] p = r.split(" ");
+                    u.uploadId = p[2];
+                    return u.acked = parseLongSafe(p[3]);
+                }
+                if (r.startsWith("OK id " + u.cid + " ")) return DONE;
+                if (refusesAttach(r)) return REFUSED;
+            }
+        }
+
+        // the ERRs ATTACH and ATTACH_RESUME answer with; any other ERR belongs to another command
+        private boolean refusesAttach(String r) {
+            return r.startsWith("ERR please LOGIN first") || r.startsWith("ERR usage: ATTACH ")
+                    || r.startsWith("ERR already uploading") || r.startsWith("ERR ATTACH missing")
+                    || r.startsWith("ERR size must be") || r.equals("ERR user not online")
+                    || (r.startsWith("ERR mailbox of ") && r.endsWith(" is full"))
+                    || r.equals("ERR upload quota exceeded") || r.equals("ERR server upload space full")
+                    || r.equals("ERR unknown or expired upload");
+        }
+
+        // connection dropped: wait for the next login, then pick up where the server is
+        private long reconnected(Upload u) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10 * 60_000;
+            String r;
+            do {
+                r = replies.poll(Math.max(1, deadline - System.currentTimeMillis()), java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (u.cancelled) return REFUSED;
+            } while (r != null && !r.startsWith("OK logged in as "));
+            if (r == null) return REFUSED;
+            if (u.uploadId != null) {
+                long at = start(u, "ATTACH_RESUME " + u.uploadId);
+                if (at != REFUSED) return at;
+            }
+            return start(u, "CID " + u.cid + " ATTACH " + u.target + " " + u.file.getName() + " " + u.size);
+        }
+
+        private boolean line(String l, boolean stored) {
+            Wire w = wire;
+            if (w == null) return false;
+            try {
+                w.send(l, stored);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private long lastLong(String r) {
+            return parseLongSafe(r.substring(r.lastIndexOf(' ') + 1));
+        }
+    }
+
+    /**
+     * The frame's glass pane: a translucent box in the top-right corner with
+     * {@link PerfMonitor#summary}, refreshed twice a second while it is visible.
+     * It has no mouse listeners, so clicks go through to the window below.
+     */
+    private static final class PerfOverlay extends JComponent {
+        private static final int LINES = 8;
+        private final javax.swing.Timer refresh = new javax.swing.Timer(500, e -> repaint());
+        private final Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+        PerfOverlay() {
+            setOpaque(false);
+        }
+
+        @Override
+        public void setVisible(boolean on) {
+            super.setVisible(on);
+            if (on) refresh.start();
+            else refresh.stop();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            List<String> lines = perf.summary(LINES);
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setFont(font);
+            FontMetrics fm = g2.getFontMetrics();
+            int w = 0;
+            for (String l : lines) w = Math.max(w, fm.stringWidth(l));
+            int h = lines.size() * fm.getHeight();
+            int x = getWidth() - w - 28, y = 60;
+            g2.setColor(new Color(0, 0, 0, 190));
+            g2.fillRoundRect(x - 10, y - 8, w + 20, h + 16, 12, 12);
+            g2.setColor(ONLINE);
+            for (String l : lines) {
+                g2.drawString(l, x, y + fm.getAscent());
+                y += fm.getHeight();
+            }
+            g2.dispose();
+        }
+    }
+
+    /**
+     * Strip of progress bars above the input, one per file in flight. Bars read their
+     * progress through a supplier a few times a second, so transfers never post to
+     * the EDT per chunk. EDT only.
+     */
+    private static final class TransferBar extends JPanel {
+        final class Entry {
+            final JPanel row = new JPanel(new BorderLayout(8, 0));
+            final JProgressBar bar = new JProgressBar(0, 1000);
+            final long size;
+            final java.util.function.LongSupplier progress;
+
+            Entry(String label, long size, java.util.function.LongSupplier progress, Runnable cancel) {
+                this.size = size;
+                this.progress = progress;
+                row.setOpaque(false);
+                JLabel l = new JLabel(label);
+                l.setForeground(ON_BG);
+                l.setFont(META_FONT);
+                bar.setStringPainted(true);
+                bar.setForeground(PRIMARY);
+                bar.setBackground(SURFACE2);
+                row.add(l, BorderLayout.WEST);
+                row.add(bar, BorderLayout.CENTER);
+                if (cancel != null) {
+                    JButton x = new JButton("✕");
+                    x.setMargin(new Insets(0, 6, 0, 6));
+                    x.setFocusPainted(false);
+                    x.setToolTipText("Cancel");
+                    x.addActionListener(e -> cancel.run());
+                    row.add(x, BorderLayout.EAST);
+                }
+            }
+
+            void refresh() {
+                long done = progress.getAsLong();
+                if (size > 0) {
+                    bar.setValue((int) Math.min(1000, done * 1000 / size));
+                    bar.setString((done * 100 / size) + "%  " + (done >> 10) + " / " + (size >> 10) + " KB");
+                } else {
+                    bar.setString((done >> 10) + " KB");
                 }
             }
-        } else {
-            appendGeneralSystem("RAW", L);
+        }
+
+        private final List<Entry> entries = new ArrayList<>();
+        private final javax.swing.Timer ticker = new javax.swing.Timer(200, e -> refresh());
+
+        TransferBar() {
+            setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+            setBackground(SURFACE);
+            setBorder(new EmptyBorder(0, 8, 0, 8));
+        }
+
+        Entry add(String label, long size, java.util.function.LongSupplier progress, Runnable cancel) {
+            Entry e = new Entry(label, size, progress, cancel);
+            entries.add(e);
+            add(e.row);
+            e.refresh();
+            ticker.start();
+            revalidate();
+            return e;
+        }
+
+        void remove(Entry e) {
+            if (e == null || !entries.remove(e)) return;
+            remove(e.row);
+            if (entries.isEmpty()) ticker.stop();
+            revalidate();
+            repaint();
+        }
+
+        private void refresh() {
+            for (Entry e : entries) e.refresh();
         }
     }
 
@@ -766,7 +1978,7 @@ else if (L.startsWith("DM ")) {
                 : new ArrayList<>(Arrays.asList(csv.split(",")));
         names.replaceAll(String::trim);
         names.removeIf(String::isBlank);
-        names.sort(String.CASE_INSENSITIVE_ORDER);
+        names.sort(String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()));
 
         usersModel.clear();
         for (String s : names) {
@@ -775,7 +1987,42 @@ else if (L.startsWith("DM ")) {
         status.setText("Online: " + usersModel.getSize());
     }
 
-    private long parseLongSafe(String s) {
+    private void applyPresence(String[] p) {
+        String from = p[1], to = p[2];
+        int c = from.indexOf(':');
+        String epoch = from.substring(0, c + 1);
+        long mine = presenceToken.startsWith(epoch) ? parseLongSafe(presenceToken.substring(c + 1)) : -1;
+        // ops are final states, so any version between from and to can take them
+        if (mine < parseLongSafe(from.substring(c + 1)) || mine > parseLongSafe(to.substring(c + 1))) {
+            send("PRESENCE " + presenceToken); // fell behind: ask for catch-up or snapshot
+            return;
+        }
+        for (int i = 3; i < p.length; i++) {
+            if (p[i].length() < 2) continue;
+            String name = p[i].substring(1);
+            int at = userIndex(name);
+            if (p[i].charAt(0) == '+' && at < 0) usersModel.add(-at - 1, name);
+            else if (p[i].charAt(0) == '-' && at >= 0) usersModel.remove(at);
+        }
+        presenceToken = to;
+        status.setText("Online: " + usersModel.getSize());
+    }
+
+    // binary search in the (case-insensitively sorted) users model; negative = -(insertion point) - 1
+    private int userIndex(String name) {
+        int lo = 0, hi = usersModel.getSize() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = String.CASE_INSENSITIVE_ORDER.compare(usersModel.get(mid), name);
+            if (cmp == 0) cmp = usersModel.get(mid).compareTo(name);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
+    private static long parseLongSafe(String s) {
         try {
             return Long.parseLong(s);
         } catch (Exception e) {
@@ -820,14 +2067,14 @@ else if (L.startsWith("DM ")) {
                 // appendDMBubble(username, "[to " + peer + "] " + dmText, true, timestamp);
                 
                 // KEEP ONLY THIS:
-                sendAndEcho("DM " + rest.substring(0, sp) + " " + rest.substring(sp + 1));
+                sendTracked("DM " + rest.substring(0, sp) + " " + rest.substring(sp + 1));
             }
         } else {
             // General chat message - ALSO REMOVE local echo here
             String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
             // REMOVE: appendGeneralBubble(username, text, true, timestamp);
             // KEEP ONLY:
-            sendAndEcho("MSG #general " + text + " " + timestamp);
+            sendTracked("MSG #general " + text + " " + timestamp);
         }
     } else {
         // DM tab
@@ -841,7 +2088,7 @@ else if (L.startsWith("DM ")) {
             String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
             // REMOVE: appendDMBubble(username, "[to " + peer + "] " + text, true, timestamp);
             // KEEP ONLY:
-            sendAndEcho("DM " + peer + " " + text + " " + timestamp);
+            sendTracked("DM " + peer + " " + text + " " + timestamp);
         }
     }
     input.setText("");
@@ -856,10 +2103,12 @@ else if (L.startsWith("DM ")) {
     private boolean isRawProtocol(String text) {
         return text.startsWith("LOGIN ") || text.startsWith("REGISTER ")
                 || text.equals("USERS") || text.equals("QUIT")
-                || text.startsWith("DM ") || text.startsWith("MSG ")
+                || text.startsWith("DM ") || text.startsWith("MSG ") || text.startsWith("CID ")
                 || text.startsWith("HISTORY ") || text.startsWith("TYPING ")
                 || text.startsWith("READ ") || text.startsWith("ATTACH ")
-                || text.startsWith("DATA ") || text.equals("ATTACH_END");
+                || text.startsWith("DATA ") || text.startsWith("CHUNK ")
+                || text.startsWith("ATTACH_RESUME ") || text.equals("ATTACH_END")
+                || text.equals("ATTACH_ABORT");
     }
 
     private void onTyping() {
@@ -903,35 +2152,40 @@ else if (L.startsWith("DM ")) {
 
         JFileChooser fc = makeDarkFileChooser("Choose a file to send", null);
         if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
-        File f = fc.getSelectedFile();
-        long size = f.length();
-
-        try (FileInputStream fis = new FileInputStream(f)) {
-            byte[] buf = fis.readAllBytes();
-            String filename = f.getName();
-            if (toGeneral) send("ATTACH #general " + filename + " " + size);
-            else send("ATTACH " + peer + " " + filename + " " + size);
-
-            // chunk base64 (~3KB per line)
-            int off = 0, chunk = 3072;
-            while (off < buf.length) {
-                int n = Math.min(chunk, buf.length - off);
-                String b64 = Base64.getEncoder().encodeToString(Arrays.copyOfRange(buf, off, off + n));
-                send("DATA " + b64);
-                off += n;
-            }
-            send("ATTACH_END");
-        } catch (IOException ex) {
-            toast("Attach failed: " + ex.getMessage());
+        if (wire == null) {
+            toast("Not connected. Click 'Connect / Login' first.");
+            return;
         }
+        uploader.submit(fc.getSelectedFile(), toGeneral ? "#general" : peer, cidPrefix + (++cidCounter));
     }
 
     private void send(String line) {
-        if (out == null) {
+        send(line, false);
+    }
+
+    // stored: skip compression for payloads that are already compressed
+    private void send(String line, boolean stored) {
+        Wire w = wire;
+        if (w == null) {
             toast("Not connected. Click 'Connect / Login' first.");
             return;
         }
-        out.println(line);
+        try {
+            w.send(line, stored);
+        } catch (IOException ex) {
+            toast("Send failed: " + ex.getMessage());
+        }
+    }
+
+    // several lines in one write and flush
+    private void sendAll(List<String> lines) {
+        Wire w = wire;
+        if (w == null || lines.isEmpty()) return;
+        try {
+            w.sendAll(lines);
+        } catch (IOException ex) {
+            toast("Send failed: " + ex.getMessage());
+        }
     }
 
     private void sendAndEcho(String line) {
@@ -939,6 +2193,31 @@ else if (L.startsWith("DM ")) {
         send(line);
     }
 
+    // like sendAndEcho, but tagged with a client id and kept until the server confirms it
+    private void sendTracked(String line) {
+        String cid = cidPrefix + (++cidCounter);
+        pendingSends.put(cid, new PendingSend(line));
+        appendGeneralSystem("SEND", line);
+        if (wire != null) send("CID " + cid + " " + line);
+        else toast("Not connected; the message will be sent after you log in.");
+    }
+
+    private void resendPending() {
+        long now = System.currentTimeMillis();
+        // too old to be deduplicated any more (or rejected with an ERR we can't match): give up
+        pendingSends.values().removeIf(p -> now - p.at > RESEND_WINDOW_MS);
+        for (Map.Entry<String, PendingSend> e : pendingSends.entrySet()) {
+            send("CID " + e.getKey() + " " + e.getValue().line);
+        }
+    }
+
+    private static final class PendingSend {
+        final String line;
+        final long at = System.currentTimeMillis();
+
+        PendingSend(String line) { this.line = line; }
+    }
+
     // ===== Append helpers (bubbles) =====
         private void appendGeneralBubble(String from, String text, boolean self, String timestamp) {
             String meta = from + "  •  " + timestamp + "  #general"; // Use timestamp here
@@ -984,7 +2263,10 @@ else if (L.startsWith("DM ")) {
    private void ensureDmThread(String peer) {
     if (!dmThreads.containsKey(peer)) {
         BubblePanel area = new BubblePanel();
+        area.onOpenImage = this::openImage;
+        area.onDropImage = this::dropImage;
         JScrollPane sc = new BubbleScroll(area);
+        watchScrollBack(sc, "@" + peer);
         dmThreads.put(peer, area);
         dmThreadsPanel.add(sc, peer);
         if (!contains(dmPeersModel, peer)) {
@@ -1052,6 +2334,22 @@ private void clearUnreadForPeer(String peer) {
         return false;
     }
 
+    private void exportPerfReport() {
+        String stamp = java.time.LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        JFileChooser fc = makeDarkFileChooser("Save performance report", "buzzchat-perf-" + stamp + ".txt");
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        List<String> context = new ArrayList<>();
+        context.add("connection " + conn + (host == null ? "" : " " + host + ":" + port) + " as " + username);
+        context.add("rows       #general " + generalPanel.rowCount() + ", " + dmThreads.size() + " DM threads");
+        context.add("inbound    " + inbound.size() + " events queued");
+        try {
+            java.nio.file.Files.writeString(fc.getSelectedFile().toPath(), perf.report(context));
+            toast("Performance report saved to " + fc.getSelectedFile());
+        } catch (IOException e) {
+            toast("Could not save report: " + e.getMessage());
+        }
+    }
+
     // ===== Misc =====
     private void toast(String s) {
         appendGeneralSystem("INFO", s);
@@ -1062,11 +2360,15 @@ private void clearUnreadForPeer(String peer) {
         int idx = tabs.getSelectedIndex();
         if (idx == 0) {
             generalPanel.clear();
+            Conversation c = conversations.get("#general");
+            if (c != null) c.complete = true; // don't page it straight back in
         } else {
             String peer = dmPeersList.getSelectedValue();
             if (peer != null) {
                 BubblePanel area = dmThreads.get(peer);
                 if (area != null) area.clear();
+                Conversation c = conversations.get("@" + peer);
+                if (c != null) c.complete = true;
             }
         }
     }
@@ -1081,127 +2383,548 @@ private void clearUnreadForPeer(String peer) {
         } catch (IOException ignored) {
         }
         socket = null;
-        in = null;
-        out = null;
+        wire = null;
         status.setText("Disconnected");
     }
 
-    private static void sleep(long ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException ignored) {
-        }
-    }
-
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new ChatSwingApp().setVisible(true));
     }
 
+    // ======= Wire framing (optional deflate) =======
+    /**
+     * Reads lines a byte at a time from a buffered stream so nothing after
+     * "OK compress deflate" is consumed before the inflater is in place. Lines sent
+     * while the COMPRESS answer is pending are held and flushed once it arrives.
+     */
+    private static final class Wire {
+        private final OutputStream raw;
+        private InputStream in;
+        private OutputStream sink;
+        private Deflater deflater;
+        private boolean compressPending = false;
+        private final List<String> held = new ArrayList<>();
+        private final BitSet heldStored = new BitSet(); // which held lines go out in stored blocks
+
+        Wire(Socket socket) throws IOException {
+            in = new BufferedInputStream(socket.getInputStream());
+            raw = new BufferedOutputStream(socket.getOutputStream());
+            sink = raw;
+        }
+
+        String readLine() throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') buf.write(b);
+            if (b == -1 && buf.size() == 0) return null;
+            String line = buf.toString(java.nio.charset.StandardCharsets.UTF_8);
+            return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        }
+
+        synchronized void send(String line, boolean stored) throws IOException {
+            if (compressPending) {
+                heldStored.set(held.size(), stored);
+                held.add(line);
+                return;
+            }
+            write(line, stored);
+            sink.flush();
+            if (line.startsWith("COMPRESS ")) compressPending = true;
+        }
+
+        synchronized void sendAll(List<String> lines) throws IOException {
+            if (compressPending) {
+                held.addAll(lines);
+                return;
+            }
+            for (String l : lines) write(l, false);
+            sink.flush();
+        }
+
+        // callers flush; a stored line is flushed here so its block ends before the level goes back up
+        private void write(String line, boolean stored) throws IOException {
+            if (stored && deflater != null) deflater.setLevel(Deflater.NO_COMPRESSION);
+            sink.write(line.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            sink.write('\n');
+            if (stored && deflater != null) {
+                sink.flush();
+                deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+            }
+        }
+
+        // called on the reader thread for every server line, before the next read
+        synchronized void onServerLine(String line) throws IOException {
+            if (!compressPending) return;
+            if (line.equals("OK compress deflate")) {
+                in = new BufferedInputStream(new InflaterInputStream(in, new Inflater(true)));
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                sink = new DeflaterOutputStream(raw, deflater, 8192, true);
+            } else if (!line.startsWith("ERR usage: COMPRESS") && !line.equals("ERR already compressed")) {
+                return; // unrelated line, or an answer to something else, arrived first
+            }
+            compressPending = false;
+            for (int i = 0; i < held.size(); i++) write(held.get(i), heldStored.get(i));
+            sink.flush();
+            held.clear();
+            heldStored.clear();
+        }
+    }
+
     // ======= Bubble UI components =======
-    private static class BubblePanel extends JPanel {
-        private final JPanel inner;
+
+    /**
+     * Message list for one conversation. Messages are plain rows in a list, not
+     * components: each row keeps its text as a measured TextBlock, and paintComponent
+     * draws only the rows that intersect the clip, found by binary search on their
+     * tops. Only the newest VIEW_ROWS rows are kept (-Dchat.viewRows=N); older ones
+     * are dropped in chunks, and the viewport is shifted so what's on screen stays put.
+     * Adds only mark the panel changed; the layout, repaint and scroll they ask for
+     * happen once, after the current batch of events. A resize re-breaks only the
+     * rows that wrap at either width and moves the tops from the first row that changed.
+     *
+     * An image row reserves a fixed Thumbnails.MAX_W x MAX_H slot, so its height never
+     * depends on whether the thumbnail is decoded, cached or evicted. Painting asks the
+     * shared cache only for the rows in the clip, and repaints once one comes in.
+     */
+    private static class BubblePanel extends JComponent implements Scrollable {
+        private static final int VIEW_ROWS = Math.max(100, Integer.getInteger("chat.viewRows", 5000));
+        private static final int TEXT_W = 580;  // widest text line, as the old HTML body width
+        private static final int PAD_X = 12, PAD_Y = 10, GAP = 6, SIDE = 8, META_GAP = 6, ARC = 18;
+
+        private static final class Row {
+            final boolean system;
+            final String meta;
+            final int metaWidth;
+            final TextBlock body;
+            final boolean self;
+            Attachment image;   // image rows: body is the file name
+            List<String> lines; // body broken at the width below
+            int wrapWidth = -1;
+            int boxWidth, height, y;
+
+            Row(boolean system, String meta, int metaWidth, TextBlock body, boolean self) {
+                this.system = system;
+                this.meta = meta;
+                this.metaWidth = metaWidth;
+                this.body = body;
+                this.self = self;
+            }
+        }
+
+        Consumer<Attachment> onOpenImage; // a thumbnail was clicked
+        Consumer<Attachment> onDropImage; // an image row was trimmed or cleared
+
+        private final ArrayList<Row> rows = new ArrayList<>();
+        private final Font systemFont;
+        private final FontMetrics textFm, metaFm, systemFm;
+        private int totalHeight = GAP;
+        private int laidOutWidth = -1;
+        private boolean flushPosted, scrollPending;
+        private int shiftPending; // rows added above the viewport since the last flush
+        boolean trimmed;          // old rows were dropped, so scrolling back would leave a hole
 
         BubblePanel() {
-            super(new BorderLayout());
+            setOpaque(true);
             setBackground(SURFACE);
-            inner = new JPanel();
-            inner.setBackground(SURFACE);
-            inner.setLayout(new BoxLayout(inner, BoxLayout.Y_AXIS));
-            add(inner, BorderLayout.NORTH);
+            Font f = UIManager.getFont("Label.font");
+            systemFont = (f != null) ? f : UI_FONT;
+            textFm = getFontMetrics(UI_FONT);
+            metaFm = getFontMetrics(META_FONT);
+            systemFm = getFontMetrics(systemFont);
+            MouseAdapter images = new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    Row r = imageAt(e.getPoint());
+                    if (r != null && onOpenImage != null && SwingUtilities.isLeftMouseButton(e)) onOpenImage.accept(r.image);
+                }
+
+                @Override
+                public void mouseMoved(MouseEvent e) {
+                    setCursor(imageAt(e.getPoint()) != null ? Cursor.getPredefinedCursor(Cursor.HAND_CURSOR) : null);
+                }
+            };
+            addMouseListener(images);
+            addMouseMotionListener(images);
         }
 
         void addBubble(String from, String meta, String text, boolean self, String timestamp) {
-            Bubble b = new Bubble(from, meta, text, self, timestamp);
-            JPanel row = new JPanel(new BorderLayout());
-            row.setOpaque(false);
-            if (self) {
-                row.add(b, BorderLayout.EAST);
-            } else {
-                row.add(b, BorderLayout.WEST);
-            }
-            inner.add(row);
-            inner.add(Box.createVerticalStrut(6));
-            revalidate();
-            repaint();
+            add(bubbleRow(meta, text, self));
+        }
+
+        Row bubbleRow(String meta, String text, boolean self) {
+            return new Row(false, meta, metaFm.stringWidth(meta), new TextBlock(text, textFm), self);
+        }
+
+        void addImage(String meta, Attachment a, boolean self) {
+            Row r = new Row(false, meta, metaFm.stringWidth(meta), new TextBlock(a.name, metaFm), self);
+            r.image = a;
+            add(r);
         }
 
+        /** Puts older rows (oldest first) above the rest, keeping what is on screen in place. */
+        void prepend(List<Row> older) {
+            int ww = wrapWidth(), y = GAP;
+            for (Row r : older) {
+                layoutRow(r, ww);
+                r.y = y;
+                y += r.height + GAP;
+            }
+            int added = y - GAP;
+            for (Row r : rows) r.y += added;
+            rows.addAll(0, older);
+            totalHeight += added;
+            shiftPending += added;
+            changed();
+        }
 
+        int rowCount() { return rows.size(); }
 
         void addSystem(String text) {
-            JLabel l = new JLabel(text);
-            l.setForeground(ON_MUTE);
-            JPanel row = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 2));
-            row.setOpaque(false);
-            row.add(l);
-            inner.add(row);
-            inner.add(Box.createVerticalStrut(6));
-            revalidate();
-            repaint();
+            add(new Row(true, null, 0, new TextBlock(text, systemFm), false));
         }
 
         void clear() {
-            inner.removeAll();
-            revalidate();
-            repaint();
+            dropped(rows);
+            rows.clear();
+            trimmed = false;
+            totalHeight = GAP;
+            changed();
         }
 
         void scrollToBottom() {
+            scrollPending = true;
+            changed();
+        }
+
+        private void changed() {
+            if (flushPosted) return;
+            flushPosted = true;
+            SwingUtilities.invokeLater(this::flush);
+        }
+
+        // one layout pass, repaint and scroll for everything added since the last flush
+        private void flush() {
+            flushPosted = false;
+            long t0 = System.nanoTime();
+            invalidate();
+            JScrollPane sp = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+            if (sp != null) sp.validate();
+            else revalidate();
+            perf.record("layout", System.nanoTime() - t0);
+            repaint();
+            Container parent = getParent();
+            if (shiftPending != 0 && !scrollPending && parent instanceof JViewport) {
+                JViewport vp = (JViewport) parent;
+                Point p = vp.getViewPosition();
+                vp.setViewPosition(new Point(p.x, p.y + shiftPending));
+            }
+            shiftPending = 0;
+            if (scrollPending) {
+                scrollPending = false;
+                scrollRectToVisible(new Rectangle(0, totalHeight - 1, 1, 1));
+            }
+        }
+
+        private void add(Row r) {
+            layoutRow(r, wrapWidth());
+            r.y = totalHeight;
+            totalHeight += r.height + GAP;
+            rows.add(r);
+            if (rows.size() > VIEW_ROWS) trim();
+            changed();
+        }
+
+        // drops the oldest eighth in one go, so trimming is amortised over many adds
+        private void trim() {
+            trimmed = true;
+            int n = rows.size() - VIEW_ROWS + VIEW_ROWS / 8;
+            int removed = rows.get(n).y - GAP;
+            dropped(rows.subList(0, n));
+            rows.subList(0, n).clear();
+            for (Row r : rows) r.y -= removed;
+            totalHeight -= removed;
             Container parent = getParent();
-            while (parent != null && !(parent instanceof JViewport)) parent = parent.getParent();
             if (parent instanceof JViewport) {
-                SwingUtilities.invokeLater(() -> {
-                    Rectangle r = new Rectangle(0, inner.getHeight() - 1, 1, 1);
-                    inner.scrollRectToVisible(r);
-                });
+                JViewport vp = (JViewport) parent;
+                Point p = vp.getViewPosition();
+                vp.setViewPosition(new Point(p.x, Math.max(0, p.y - removed)));
             }
         }
-    }
 
-    private static class Bubble extends JPanel {
-            Bubble(String from, String meta, String text, boolean self, String timestamp) {
-        setOpaque(false);
-        setLayout(new BorderLayout(8, 4));
+        private void dropped(List<Row> gone) {
+            if (onDropImage == null) return;
+            for (Row r : gone) if (r.image != null) onDropImage.accept(r.image);
+        }
 
-        // bubble card
-        JPanel card = new JPanel(new BorderLayout(0, 6)) {
-            @Override
-            protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setColor(self ? ME_BUBBLE : OTHER_BUB);
-                int arc = 18;
-                g2.fillRoundRect(0, 0, getWidth(), getHeight(), arc, arc);
-                g2.dispose();
-                super.paintComponent(g);
+        private int wrapWidth() {
+            int w = getWidth();
+            return (w <= 0) ? TEXT_W : Math.max(80, Math.min(TEXT_W, w - 2 * SIDE - 2 * PAD_X - 40));
+        }
+
+        @Override
+        public void setBounds(int x, int y, int w, int h) {
+            super.setBounds(x, y, w, h);
+            if (w != laidOutWidth) {
+                laidOutWidth = w;
+                relayout();
             }
-        };
-        card.setOpaque(false);
-        card.setBorder(new EmptyBorder(10, 12, 10, 12));
+        }
+
+        private void relayout() {
+            long t0 = System.nanoTime();
+            int ww = wrapWidth(), top = -1;
+            for (Row r : rows) {
+                if (top >= 0) r.y = top;
+                int h = r.height;
+                layoutRow(r, ww);
+                if (top < 0 && r.height != h) top = r.y; // tops below this row move
+                if (top >= 0) top += r.height + GAP;
+            }
+            if (top >= 0 && top != totalHeight) {
+                totalHeight = top;
+                revalidate();
+            }
+            repaint();
+            perf.record("relayout", System.nanoTime() - t0);
+        }
+
+        private void layoutRow(Row r, int ww) {
+            if (r.wrapWidth == ww) return;
+            r.wrapWidth = ww;
+            if (r.system) {
+                r.lines = r.body.lines(Integer.MAX_VALUE);
+                r.height = systemFm.getHeight() + 4;
+                return;
+            }
+            if (r.image != null) {
+                r.lines = r.body.lines(Thumbnails.MAX_W);
+                r.boxWidth = Math.max(r.metaWidth, Thumbnails.MAX_W) + 2 * PAD_X;
+                r.height = 2 * PAD_Y + metaFm.getHeight() + META_GAP + Thumbnails.MAX_H
+                        + META_GAP + r.lines.size() * metaFm.getHeight();
+                return;
+            }
+            r.lines = r.body.lines(ww);
+            r.boxWidth = Math.max(r.metaWidth, r.body.width()) + 2 * PAD_X;
+            r.height = 2 * PAD_Y + metaFm.getHeight() + META_GAP + r.lines.size() * textFm.getHeight();
+        }
+
+        // the image row whose thumbnail slot is under p, if any
+        private Row imageAt(Point p) {
+            int i = firstRowAt(p.y);
+            if (i >= rows.size()) return null;
+            Row r = rows.get(i);
+            if (r.image == null || r.y > p.y) return null;
+            int x = (r.self ? getWidth() - SIDE - r.boxWidth : SIDE) + PAD_X;
+            int y = r.y + PAD_Y + metaFm.getHeight() + META_GAP;
+            return (p.x >= x && p.x < x + Thumbnails.MAX_W && p.y >= y && p.y < y + Thumbnails.MAX_H) ? r : null;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            long t0 = System.nanoTime();
+            paintRows(g);
+            perf.record("paint", System.nanoTime() - t0);
+        }
+
+        private void paintRows(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            int bottom = clip.y + clip.height;
+            for (int i = firstRowAt(clip.y); i < rows.size(); i++) {
+                Row r = rows.get(i);
+                if (r.y >= bottom) break;
+                paintRow(g2, r);
+            }
+            g2.dispose();
+        }
+
+        // index of the first row whose bottom is below y
+        private int firstRowAt(int y) {
+            int lo = 0, hi = rows.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                Row r = rows.get(mid);
+                if (r.y + r.height < y) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        private void paintRow(Graphics2D g, Row r) {
+            if (r.system) {
+                String t = r.lines.get(0);
+                g.setFont(systemFont);
+                g.setColor(ON_MUTE);
+                g.drawString(t, (getWidth() - r.body.width()) / 2, r.y + 2 + systemFm.getAscent());
+                return;
+            }
+            int x = r.self ? getWidth() - SIDE - r.boxWidth : SIDE;
+            g.setColor(r.self ? ME_BUBBLE : OTHER_BUB);
+            g.fillRoundRect(x, r.y, r.boxWidth, r.height, ARC, ARC);
+
+            int ty = r.y + PAD_Y;
+            g.setFont(META_FONT);
+            g.setColor(META_FG);
+            g.drawString(r.meta, x + PAD_X, ty + metaFm.getAscent());
+            ty += metaFm.getHeight() + META_GAP;
+
+            if (r.image != null) {
+                paintImage(g, r, x + PAD_X, ty);
+                return;
+            }
+            g.setFont(UI_FONT);
+            g.setColor(Color.WHITE);
+            for (String l : r.lines) {
+                g.drawString(l, x + PAD_X, ty + textFm.getAscent());
+                ty += textFm.getHeight();
+            }
+        }
+
+        // thumbnail (or a placeholder while there is none) in its fixed slot, file name below
+        private void paintImage(Graphics2D g, Row r, int x, int y) {
+            Attachment a = r.image;
+            BufferedImage thumb = (a.file == null) ? null : thumbs.get(a.file, this::repaint);
+            if (thumb != null) {
+                g.drawImage(thumb, x + (Thumbnails.MAX_W - thumb.getWidth()) / 2,
+                        y + (Thumbnails.MAX_H - thumb.getHeight()) / 2, null);
+            } else {
+                g.setColor(SURFACE2);
+                g.fillRoundRect(x, y, Thumbnails.MAX_W, Thumbnails.MAX_H, 8, 8);
+                String note = a.broken ? "not received"
+                        : a.file == null ? "receiving…"
+                        : thumbs.failed(a.file) ? "no preview" : "loading…";
+                g.setFont(META_FONT);
+                g.setColor(ON_MUTE);
+                g.drawString(note, x + (Thumbnails.MAX_W - metaFm.stringWidth(note)) / 2,
+                        y + (Thumbnails.MAX_H + metaFm.getAscent()) / 2);
+            }
+            int ty = y + Thumbnails.MAX_H + META_GAP;
+            g.setFont(META_FONT);
+            g.setColor(META_FG);
+            for (String l : r.lines) {
+                g.drawString(l, x, ty + metaFm.getAscent());
+                ty += metaFm.getHeight();
+            }
+        }
 
-        JLabel metaL = new JLabel(meta);
-        metaL.setForeground(new Color(255, 255, 255, 180));
-        metaL.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        JLabel textL = new JLabel(htmlWrap(text));
-        textL.setForeground(Color.WHITE);
-        textL.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        // ---- Scrollable: track the viewport's width, grow downwards ----
+        @Override
+        public Dimension getPreferredSize() { return new Dimension(TEXT_W + 2 * PAD_X + 2 * SIDE, totalHeight); }
 
-        card.add(metaL, BorderLayout.NORTH);
-        card.add(textL, BorderLayout.CENTER);
+        @Override
+        public Dimension getPreferredScrollableViewportSize() { return getPreferredSize(); }
+
+        @Override
+        public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) { return 24; }
+
+        @Override
+        public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+            return Math.max(24, visible.height - 24);
+        }
+
+        @Override
+        public boolean getScrollableTracksViewportWidth() { return true; }
 
-        add(card, BorderLayout.CENTER);
-        setMaximumSize(new Dimension(620, Integer.MAX_VALUE)); // wrap width
+        @Override
+        public boolean getScrollableTracksViewportHeight() {
+            Container p = getParent();
+            return p instanceof JViewport && p.getHeight() > totalHeight;
+        }
     }
 
+    /**
+     * Text measured once and line-broken on demand. Word widths are taken when the
+     * block is built, so breaking it at another width is arithmetic over those; the
+     * last result is kept, and a block that fits on one line at both the old and the
+     * new width is not touched at all.
+     */
+    private static final class TextBlock {
+        private final String[][] words;  // per paragraph
+        private final int[][] widths;
+        private final int spaceWidth;
+        private final FontMetrics fm;    // for the odd word wider than a whole line
+        private final int naturalWidth;  // widest paragraph, unbroken
+        private int brokenAt = -1;
+        private List<String> lines;
+        private int linesWidth;          // widest of the broken lines
+
+        TextBlock(String text, FontMetrics fm) {
+            this.fm = fm;
+            this.spaceWidth = fm.charWidth(' ');
+            String[] paras = text.split("\n", -1);
+            words = new String[paras.length][];
+            widths = new int[paras.length][];
+            int natural = 0;
+            for (int p = 0; p < paras.length; p++) {
+                words[p] = paras[p].split(" ", -1);
+                widths[p] = new int[words[p].length];
+                int w = 0;
+                for (int i = 0; i < words[p].length; i++) {
+                    widths[p][i] = fm.stringWidth(words[p][i]);
+                    w += widths[p][i] + (i > 0 ? spaceWidth : 0);
+                }
+                natural = Math.max(natural, w);
+            }
+            naturalWidth = natural;
+        }
+
+        /** Lines no wider than {@code width}; a word wider than that is split between characters. */
+        List<String> lines(int width) {
+            if (width == brokenAt) return lines;
+            boolean unbrokenBefore = lines != null && naturalWidth <= brokenAt;
+            brokenAt = width;
+            if (unbrokenBefore && naturalWidth <= width) return lines;
+            lines = new ArrayList<>();
+            linesWidth = 0;
+            StringBuilder line = new StringBuilder();
+            for (int p = 0; p < words.length; p++) {
+                line.setLength(0);
+                int lineW = 0;
+                for (int i = 0; i < words[p].length; i++) {
+                    int ww = widths[p][i];
+                    int sp = (line.length() == 0) ? 0 : spaceWidth;
+                    if (lineW + sp + ww <= width) {
+                        if (sp > 0) line.append(' ');
+                        line.append(words[p][i]);
+                        lineW += sp + ww;
+                        continue;
+                    }
+                    if (line.length() > 0) emit(line, lineW);
+                    lineW = 0;
+                    if (ww <= width) {
+                        line.append(words[p][i]);
+                        lineW = ww;
+                        continue;
+                    }
+                    String word = words[p][i];
+                    for (int c = 0; c < word.length(); c++) {
+                        int cw = fm.charWidth(word.charAt(c));
+                        if (lineW + cw > width && line.length() > 0) {
+                            emit(line, lineW);
+                            lineW = 0;
+                        }
+                        line.append(word.charAt(c));
+                        lineW += cw;
+                    }
+                }
+                emit(line, lineW);
+            }
+            return lines;
+        }
 
-        private String htmlWrap(String s) {
-            // Basic HTML wrap to allow automatic line breaks and preserve spaces
-            String esc = s
-                    .replace("&", "&amp;")
-                    .replace("<", "&lt;")
-                    .replace(">", "&gt;")
-                    .replace("\n", "<br>");
-            return "<html><body style='width:580px'>" + esc + "</body></html>";
+        private void emit(StringBuilder line, int w) {
+            lines.add(line.toString());
+            linesWidth = Math.max(linesWidth, w);
+            line.setLength(0);
         }
+
+        /** Width of the widest line from the last {@link #lines} call. */
+        int width() { return linesWidth; }
     }
 
     private static class BubbleScroll extends JScrollPane {
@@ -1216,7 +2939,7 @@ private void clearUnreadForPeer(String peer) {
     private static class UserCell extends JLabel implements ListCellRenderer<String> {
         UserCell() {
             setOpaque(true);
-            setFont(new Font("Segoe UI", Font.PLAIN, 14));
+            setFont(UI_FONT);
         }
 
         @Override
@@ -1224,11 +2947,11 @@ private void clearUnreadForPeer(String peer) {
                                                       boolean isSelected, boolean cellHasFocus) {
             setText("  ●  " + value);
             if (isSelected) {
-                setBackground(new Color(0x29434E));
+                setBackground(USER_SEL);
                 setForeground(ON_BG);
             } else {
                 setBackground((index % 2 == 0) ? SURFACE : SURFACE2);
-                setForeground(new Color(0x81C784)); // online green-ish
+                setForeground(ONLINE); // online green-ish
             }
             return this;
         }
@@ -1239,7 +2962,7 @@ private void clearUnreadForPeer(String peer) {
         
         PeerCell() {
             setOpaque(true);
-            setFont(new Font("Segoe UI", Font.PLAIN, 14));
+            setFont(UI_FONT);
         }
         
         void setParent(ChatSwingApp parent) {
@@ -1258,14 +2981,14 @@ private void clearUnreadForPeer(String peer) {
             // Display peer name with badge if unread
             if (unread > 0) {
                 setText("  " + value + " (" + unread + ")");
-                setFont(getFont().deriveFont(Font.BOLD));
+                setFont(UI_FONT_BOLD);
             } else {
                 setText("  " + value);
-                setFont(new Font("Segoe UI", Font.PLAIN, 14));
+                setFont(UI_FONT);
             }
             
             if (isSelected) {
-                setBackground(new Color(0x263238));
+                setBackground(PEER_SEL);
                 setForeground(ON_BG);
             } else {
                 setBackground((index % 2 == 0) ? SURFACE : SURFACE2);
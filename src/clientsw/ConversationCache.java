@@ -0,0 +1,242 @@
+package clientsw;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversations kept on disk between runs, one directory per server and user
+ * (~/.buzzchat/cache/<host>_<port>/<user>, or under -Dchat.cacheDir).
+ *
+ * Each conversation is one file ("general.log", "dm_<peer>.log") holding the exact
+ * server lines ("MSG <seq> ...", "DM <seq> ..."), oldest first, with no gaps
+ * between seqs. New lines are only taken when they extend the run at either end,
+ * so the newest cached seq is always a safe point to SYNC from. At most maxLines
+ * are kept per conversation. Past that, the oldest eighth is dropped in one rewrite.
+ *
+ * The in-memory copy belongs to the caller's thread (the EDT). Reads at load time
+ * and all writes go to one "history-cache" thread shared by every cache, which
+ * keeps appended files open and flushes them when it runs out of work.
+ */
+final class ConversationCache {
+    private final File dir;
+    private final int maxLines;
+    private final Map<String, ArrayList<String>> convs = new HashMap<>();
+
+    private static final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    private static final Map<File, Writer> open = new HashMap<>(); // cache thread only
+
+    static {
+        Thread t = new Thread(ConversationCache::run, "history-cache");
+        t.setDaemon(true);
+        t.start();
+        // System.exit() from Quit: let what is queued reach the disk first
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            CountDownLatch done = new CountDownLatch(1);
+            queue.add(() -> {
+                flushAll();
+                done.countDown();
+            });
+            try {
+                done.await(2, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }, "history-cache-flush"));
+    }
+
+    ConversationCache(File dir, int maxLines) {
+        this.dir = dir;
+        this.maxLines = maxLines;
+    }
+
+    File dir() { return dir; }
+
+    /** Reads every cached conversation on the cache thread, then runs {@code done} through {@code edt}. */
+    void load(Executor edt, Runnable done) {
+        queue.add(() -> {
+            Map<String, ArrayList<String>> read = new HashMap<>();
+            File[] files = dir.listFiles((d, n) -> n.endsWith(".log"));
+            if (files != null) {
+                for (File f : files) {
+                    String key = keyOf(f.getName());
+                    if (key == null) continue;
+                    try {
+                        ArrayList<String> lines = new ArrayList<>();
+                        long last = -1;
+                        for (String l : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+                            long seq = seqOf(l);
+                            if (seq <= 0 || (last > 0 && seq != last + 1)) continue; // torn or out of run
+                            lines.add(l);
+                            last = seq;
+                        }
+                        read.put(key, lines);
+                    } catch (IOException e) {
+                        System.err.println("cache: could not read " + f + ": " + e);
+                    }
+                }
+            }
+            edt.execute(() -> {
+                convs.putAll(read);
+                done.run();
+            });
+        });
+    }
+
+    /** "#general" and "@peer" for every conversation with cached lines. */
+    Set<String> keys() {
+        Set<String> out = new TreeSet<>();
+        for (Map.Entry<String, ArrayList<String>> e : convs.entrySet()) {
+            if (!e.getValue().isEmpty()) out.add(e.getKey());
+        }
+        return out;
+    }
+
+    /** Newest cached seq of {@code key}, 0 if none. */
+    long head(String key) {
+        List<String> l = convs.get(key);
+        return (l == null || l.isEmpty()) ? 0 : seqOf(l.get(l.size() - 1));
+    }
+
+    /** Up to {@code max} cached lines older than {@code beforeSeq} (0: the newest), oldest first. */
+    List<String> before(String key, long beforeSeq, int max) {
+        List<String> l = convs.get(key);
+        if (l == null || l.isEmpty()) return List.of();
+        long first = seqOf(l.get(0));
+        int end = (beforeSeq <= 0) ? l.size() : (int) Math.max(0, Math.min(l.size(), beforeSeq - first));
+        return new ArrayList<>(l.subList(Math.max(0, end - max), end));
+    }
+
+    /** Takes a line that came in live or by SYNC if it is the next one after the cached run. */
+    void append(String key, String line) {
+        ArrayList<String> l = convs.computeIfAbsent(key, k -> new ArrayList<>());
+        long seq = seqOf(line);
+        if (!l.isEmpty() && seq != seqOf(l.get(l.size() - 1)) + 1) return;
+        l.add(line);
+        if (l.size() > maxLines) {
+            l.subList(0, maxLines / 8 + l.size() - maxLines).clear();
+            rewrite(key, l);
+        } else {
+            queue.add(() -> write(key, line));
+        }
+    }
+
+    /** Takes a page of older lines (oldest first) if it ends right before the cached run. */
+    void prepend(String key, List<String> page) {
+        if (page.isEmpty()) return;
+        ArrayList<String> l = convs.computeIfAbsent(key, k -> new ArrayList<>());
+        if (!l.isEmpty() && seqOf(page.get(page.size() - 1)) + 1 != seqOf(l.get(0))) return;
+        if (l.size() + page.size() > maxLines) return; // full: scroll-back past this is not kept
+        l.addAll(0, page);
+        rewrite(key, l);
+    }
+
+    /** Forgets a conversation, e.g. when the server no longer has what we cached. */
+    void reset(String key) {
+        ArrayList<String> l = convs.remove(key);
+        if (l != null) rewrite(key, List.of());
+    }
+
+    // ---------- cache thread ----------
+    private static void run() {
+        while (true) {
+            try {
+                queue.take().run();
+                if (queue.isEmpty()) flushAll();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("cache: " + e);
+            }
+        }
+    }
+
+    private void write(String key, String line) {
+        try {
+            File f = file(key);
+            Writer w = open.get(f);
+            if (w == null) {
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+                w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f, true), StandardCharsets.UTF_8));
+                open.put(f, w);
+            }
+            w.write(line);
+            w.write('\n');
+        } catch (IOException e) {
+            System.err.println("cache: could not write " + key + ": " + e);
+        }
+    }
+
+    private void rewrite(String key, List<String> lines) {
+        List<String> copy = new ArrayList<>(lines);
+        queue.add(() -> {
+            File f = file(key);
+            closeWriter(f);
+            try {
+                if (copy.isEmpty()) {
+                    Files.deleteIfExists(f.toPath());
+                    return;
+                }
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+                File tmp = new File(dir, f.getName() + ".tmp");
+                Files.write(tmp.toPath(), copy, StandardCharsets.UTF_8);
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("cache: could not rewrite " + f + ": " + e);
+            }
+        });
+    }
+
+    private static void closeWriter(File f) {
+        Writer w = open.remove(f);
+        if (w == null) return;
+        try {
+            w.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void flushAll() {
+        for (Writer w : open.values()) {
+            try {
+                w.flush();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private File file(String key) {
+        return new File(dir, key.equals("#general") ? "general.log" : "dm_" + key.substring(1) + ".log");
+    }
+
+    private static String keyOf(String fileName) {
+        if (fileName.equals("general.log")) return "#general";
+        if (fileName.startsWith("dm_") && fileName.length() > 7) return "@" + fileName.substring(3, fileName.length() - 4);
+        return null;
+    }
+
+    /** The seq in "MSG <seq> ..." / "DM <seq> ..."; -1 if there is none. */
+    static long seqOf(String line) {
+        int a = line.indexOf(' ');
+        int b = line.indexOf(' ', a + 1);
+        if (a < 0 || b < 0) return -1;
+        try {
+            return Long.parseLong(line.substring(a + 1, b));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Where the cache for {@code user} on {@code host:port} lives. */
+    static File dirFor(String host, int port, String user) {
+        String base = System.getProperty("chat.cacheDir",
+                System.getProperty("user.home") + File.separator + ".buzzchat" + File.separator + "cache");
+        return new File(new File(base, host.replaceAll("[^A-Za-z0-9._-]", "_") + "_" + port), user);
+    }
+}
@@ -0,0 +1,22 @@
+package clientsw;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * File types whose contents are already compressed (archives, images, audio, video,
+ * office documents). Their CHUNK lines go out in stored blocks: deflating them again
+ * costs CPU and saves nothing. The server keeps the same list for FILE_DATA.
+ */
+final class FileTypes {
+    private static final Set<String> PRECOMPRESSED = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "png", "jpg", "jpeg", "gif", "webp",
+            "mp3", "mp4", "m4a", "mov", "mkv", "webm", "ogg", "pdf", "docx", "xlsx", "pptx");
+
+    private FileTypes() {}
+
+    static boolean isPrecompressed(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && PRECOMPRESSED.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
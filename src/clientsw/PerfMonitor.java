@@ -0,0 +1,150 @@
+package clientsw;
+
+import java.awt.EventQueue;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the Swing client's time goes, so a report of a freeze can come with numbers.
+ *
+ * Code that might be slow calls {@link #record} with its duration under a short
+ * name ("layout", "paint", "handle MSG", ...). Each name keeps a count, total, max and
+ * a log2 histogram in microseconds, all lock-free, so any thread may record. An
+ * "edt-probe" thread posts an empty event to the EDT every PROBE_MS and records how
+ * long it waited in the queue as "edt latency": that is how long a click or a key
+ * press would have waited at that moment.
+ *
+ * {@link #summary} gives the few lines the overlay shows; {@link #report} a full
+ * plain-text table for exporting.
+ */
+final class PerfMonitor {
+    private static final long PROBE_MS = 100;
+    private static final int BUCKETS = 32; // bucket i: under 2^i microseconds
+    static final String EDT_LATENCY = "edt latency";
+
+    private static final class Metric {
+        final String name;
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        Metric(String name) { this.name = name; }
+
+        void add(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            long us = nanos / 1000;
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us)));
+        }
+
+        // upper bound of the bucket holding the q-th quantile (never above the max), in ms
+        double quantileMs(double q) {
+            long n = count.sum(), seen = 0;
+            if (n == 0) return 0;
+            double max = maxNanos.get() / 1e6;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= q * n) return Math.min(max, (1L << i) / 1000.0);
+            }
+            return max;
+        }
+
+        double avgMs() {
+            long n = count.sum();
+            return (n == 0) ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+    }
+
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    PerfMonitor() {
+        Thread t = new Thread(this::probe, "edt-probe");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void record(String name, long nanos) {
+        metrics.computeIfAbsent(name, Metric::new).add(nanos);
+    }
+
+    private void probe() {
+        while (true) {
+            try {
+                Thread.sleep(PROBE_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long posted = System.nanoTime();
+            EventQueue.invokeLater(() -> record(EDT_LATENCY, System.nanoTime() - posted));
+            heapUsed(); // keeps the peak
+        }
+    }
+
+    long heapUsed() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        peakHeap.accumulateAndGet(used, Math::max);
+        return used;
+    }
+
+    /** A few lines for the overlay: EDT latency, heap, and the names costing the most EDT time. */
+    List<String> summary(int top) {
+        List<String> out = new ArrayList<>();
+        Metric lat = metrics.get(EDT_LATENCY);
+        if (lat != null) {
+            out.add(String.format("EDT latency  p50 %.1f  p99 %.1f  max %.1f ms",
+                    lat.quantileMs(0.5), lat.quantileMs(0.99), lat.maxNanos.get() / 1e6));
+        }
+        out.add(String.format("heap  %d MB used, peak %d MB, max %d MB",
+                heapUsed() >> 20, peakHeap.get() >> 20, Runtime.getRuntime().maxMemory() >> 20));
+        for (Metric m : byTotal()) {
+            if (out.size() >= top + 2) break;
+            if (m == lat) continue;
+            out.add(String.format("%-16s %6dx  avg %.2f  p99 %.1f  max %.1f ms",
+                    m.name, m.count.sum(), m.avgMs(), m.quantileMs(0.99), m.maxNanos.get() / 1e6));
+        }
+        return out;
+    }
+
+    /** Everything, as text; {@code context} lines (connection, panel sizes, ...) go in the header. */
+    String report(List<String> context) {
+        StringBuilder b = new StringBuilder(4096);
+        long now = System.currentTimeMillis();
+        b.append("BuzzChat performance report\n");
+        b.append("generated  ").append(Instant.ofEpochMilli(now)).append('\n');
+        b.append("uptime     ").append((now - startedAt) / 1000).append(" s\n");
+        b.append("java       ").append(System.getProperty("java.version")).append(" (")
+         .append(System.getProperty("java.vendor")).append(")\n");
+        b.append("os         ").append(System.getProperty("os.name")).append(' ')
+         .append(System.getProperty("os.version")).append(' ').append(System.getProperty("os.arch")).append('\n');
+        b.append("cpus       ").append(Runtime.getRuntime().availableProcessors()).append('\n');
+        b.append(String.format("heap       %d MB used, peak %d MB, max %d MB%n",
+                heapUsed() >> 20, peakHeap.get() >> 20, Runtime.getRuntime().maxMemory() >> 20));
+        for (String c : context) b.append(c).append('\n');
+        b.append('\n');
+        b.append(String.format("%-20s %10s %10s %9s %9s %9s %9s %9s%n",
+                "name", "count", "total ms", "avg ms", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (Metric m : byTotal()) {
+            b.append(String.format("%-20s %10d %10.1f %9.3f %9.2f %9.2f %9.2f %9.2f%n",
+                    m.name, m.count.sum(), m.totalNanos.sum() / 1e6, m.avgMs(),
+                    m.quantileMs(0.5), m.quantileMs(0.95), m.quantileMs(0.99), m.maxNanos.get() / 1e6));
+        }
+        b.append("\npercentiles are bucket upper bounds (powers of two in microseconds).\n");
+        b.append("\"edt latency\" is sampled every ").append(PROBE_MS).append(" ms; \"decode\" runs on the reader thread.\n");
+        return b.toString();
+    }
+
+    private List<Metric> byTotal() {
+        List<Metric> all = new ArrayList<>(metrics.values());
+        all.sort((x, y) -> Long.compare(y.totalNanos.sum(), x.totalNanos.sum()));
+        return all;
+    }
+}
@@ -0,0 +1,195 @@
+package clientsw;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Consumer;
+
+/**
+ * Downscaled previews of received images, made off the EDT and kept within a byte budget.
+ *
+ * {@link #get} is called while painting and never blocks: it returns the thumbnail if
+ * it is cached, otherwise it queues the file for one of the "thumbnail-N" threads and
+ * returns null; the caller's callback runs on the EDT once the thumbnail is in. Requests
+ * are served newest first and only the newest MAX_WANTED are kept, so flinging through
+ * a long thread decodes what ends up on screen, not everything that scrolled past.
+ *
+ * Decoding subsamples at read time (every n-th pixel of every n-th row), so a 24 MP
+ * photo never becomes a 96 MB raster just to be shrunk to 240 px. Thumbnails live in an
+ * access-ordered LRU map capped at -Dchat.thumbCacheMb (default 32); one that is
+ * evicted is simply made again when it is next painted.
+ *
+ * Everything but the decoding itself belongs to the EDT.
+ */
+final class Thumbnails {
+    static final int MAX_W = 240, MAX_H = 180;
+    private static final int MAX_WANTED = 32;
+    private static final long FULL_MAX_PIXELS = 40_000_000L; // bigger than this opens subsampled
+
+    private final long maxBytes = Math.max(1, Integer.getInteger("chat.thumbCacheMb", 32)) * 1024L * 1024L;
+    private final LinkedHashMap<File, BufferedImage> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private final Map<File, Runnable> pending = new HashMap<>();
+    private final Set<File> failed = new HashSet<>();
+    private final LinkedBlockingDeque<File> wanted = new LinkedBlockingDeque<>();
+    private final PerfMonitor perf;
+
+    Thumbnails(PerfMonitor perf) {
+        this.perf = perf;
+        int n = Math.max(1, Integer.getInteger("chat.thumbThreads",
+                Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+        for (int i = 0; i < n; i++) {
+            Thread t = new Thread(this::run, "thumbnail-" + i);
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            t.start();
+        }
+    }
+
+    /** The cached thumbnail of {@code f}, or null after queueing it; {@code ready} runs on the EDT when it is in. */
+    BufferedImage get(File f, Runnable ready) {
+        BufferedImage img = cache.get(f);
+        if (img != null || failed.contains(f)) return img;
+        if (pending.putIfAbsent(f, ready) == null) {
+            wanted.addLast(f);
+        } else if (wanted.remove(f)) {
+            wanted.addLast(f); // asked again: to the front of the line
+        }
+        while (wanted.size() > MAX_WANTED) {
+            File dropped = wanted.pollFirst();
+            if (dropped != null) pending.remove(dropped);
+        }
+        return null;
+    }
+
+    /** Drops everything kept for {@code f}, which is about to be deleted. */
+    void forget(File f) {
+        BufferedImage img = cache.remove(f);
+        if (img != null) bytes -= sizeOf(img);
+        failed.remove(f);
+        if (pending.remove(f) != null) wanted.remove(f);
+    }
+
+    /** True once decoding {@code f} has failed; it is not tried again. */
+    boolean failed(File f) { return failed.contains(f); }
+
+    /** Decodes {@code f} at full size (subsampled past FULL_MAX_PIXELS) and hands it to {@code done} on the EDT; null if it can't be read. */
+    void full(File f, Consumer<BufferedImage> done) {
+        Thread t = new Thread(() -> {
+            BufferedImage img = null;
+            try {
+                img = read(f, Integer.MAX_VALUE, Integer.MAX_VALUE, FULL_MAX_PIXELS);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("image: could not open " + f + ": " + e);
+            }
+            BufferedImage result = img;
+            SwingUtilities.invokeLater(() -> done.accept(result));
+        }, "image-open");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ---------- decoding threads ----------
+    private void run() {
+        while (true) {
+            File f;
+            try {
+                f = wanted.takeLast();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long t0 = System.nanoTime();
+            BufferedImage thumb = null;
+            try {
+                thumb = scale(read(f, MAX_W, MAX_H, Long.MAX_VALUE));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("image: no preview for " + f + ": " + e);
+            }
+            perf.record("thumbnail", System.nanoTime() - t0);
+            BufferedImage result = thumb;
+            SwingUtilities.invokeLater(() -> done(f, result));
+        }
+    }
+
+    // EDT
+    private void done(File f, BufferedImage thumb) {
+        Runnable ready = pending.remove(f);
+        if (ready == null) return; // forgotten while it was being decoded
+        if (thumb == null) {
+            failed.add(f);
+        } else {
+            BufferedImage old = cache.put(f, thumb);
+            if (old != null) bytes -= sizeOf(old);
+            bytes += sizeOf(thumb);
+            Iterator<BufferedImage> it = cache.values().iterator();
+            while (bytes > maxBytes && cache.size() > 1 && it.hasNext()) {
+                bytes -= sizeOf(it.next());
+                it.remove();
+            }
+        }
+        ready.run();
+    }
+
+    /*
+     * Reads the first image in f, skipping pixels so the result is no smaller than
+     * w x h where it can be (at most twice it on each side) and at most maxPixels.
+     */
+    private static BufferedImage read(File f, int w, int h, long maxPixels) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(f)) {
+            if (in == null) throw new IOException("cannot open");
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("not an image");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int sw = reader.getWidth(0), sh = reader.getHeight(0);
+                int step = Math.max(1, Math.min(sw / w, sh / h) / 2);
+                while ((long) (sw / step) * (sh / step) > maxPixels) step++;
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // fits the image in MAX_W x MAX_H, halving first so bilinear sampling doesn't alias
+    private static BufferedImage scale(BufferedImage src) {
+        double k = Math.min(1.0, Math.min((double) MAX_W / src.getWidth(), (double) MAX_H / src.getHeight()));
+        int tw = Math.max(1, (int) Math.round(src.getWidth() * k));
+        int th = Math.max(1, (int) Math.round(src.getHeight() * k));
+        BufferedImage img = src;
+        while (img.getWidth() / 2 >= tw && img.getHeight() / 2 >= th) {
+            img = resize(img, img.getWidth() / 2, img.getHeight() / 2);
+        }
+        return resize(img, tw, th);
+    }
+
+    private static BufferedImage resize(BufferedImage src, int w, int h) {
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = out.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, 0, 0, w, h, null);
+        g.dispose();
+        return out;
+    }
+
+    private static long sizeOf(BufferedImage img) {
+        return 4L * img.getWidth() * img.getHeight();
+    }
+
+    /** Whether {@code name} looks like something ImageIO can preview. */
+    static boolean isImage(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.endsWith(".png") || n.endsWith(".jpg") || n.endsWith(".jpeg") || n.endsWith(".gif") || n.endsWith(".bmp");
+    }
+}
@@ -2,10 +2,21 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.zip.*;
 
 /**
  * ChatServer with:
@@ -17,10 +28,17 @@ import java.util.concurrent.atomic.AtomicLong;
  *  - ATTACH / DATA / ATTACH_END (file relay; General + DM)
  *
  * Protocol additions (Client -> Server):
- *   ATTACH #general <filename> <size>
+ *   ATTACH #general <filename> <size>            -> OK attach begin <uploadId>; ...
  *   ATTACH <user> <filename> <size>
- *   DATA <base64>
- *   ATTACH_END
+ *   CHUNK <offset> <crc32hex> <base64>           -> ACK <uploadId> <committed>
+ *                                                or NACK <uploadId> <committed> offset|crc|size
+ *   DATA <base64>                                (older clients: unchecked append, no ack)
+ *   ATTACH_END                                   -> OK file sent <id>, once all <size> bytes are in
+ *   ATTACH_ABORT
+ *   ATTACH_RESUME <uploadId>                     -> OK resume <uploadId> <committed>; then CHUNKs again
+ * One upload at a time per connection; other commands keep working while it is open.
+ * Uploads are staged on disk (uploads/) under per-user and total quotas and are
+ * dropped UPLOAD_TTL_MS after their last chunk if nobody resumes them.
  *
  * Server -> Client during relay:
  *   FILE <id> <from> #general <filename> <size>
@@ -28,6 +46,83 @@ import java.util.concurrent.atomic.AtomicLong;
  *   FILE <id> <from> <filename> <size>               // to DM recipient
  *   FILE_DATA <id> <base64>
  *   FILE_END <id>
+ *
+ * Catch-up after a reconnect (ids in MSG/DM lines are per-channel sequence
+ * numbers that survive restarts):
+ *   SYNC #general <sinceSeq>      -> missed MSG lines, then SYNC_END #general <lastSent> <head>
+ *   SYNC @<peer> <sinceSeq>       -> missed DM lines with <peer>, then SYNC_END @<peer> <lastSent> <head>
+ * At most SYNC_BATCH lines are sent per SYNC; ask again while lastSent < head.
+ *
+ * Scroll-back (pages backwards from the oldest line a client has):
+ *   HISTORY #general <beforeSeq> [max]  -> up to max lines older than beforeSeq (0: the newest),
+ *                                          oldest first, then HISTORY_END #general <firstSent> <head>
+ *   HISTORY @<peer> <beforeSeq> [max]   -> the same for the DM conversation with <peer>
+ * firstSent is 0 when there is nothing older; max is capped at SYNC_BATCH.
+ * #general is numbered and sent by a single {@link Sequencer} thread, so every
+ * client receives it in seq order.
+ *
+ * Presence (versioned; see {@link Presence}):
+ *   PRESENCE <token|0>  -> PRESENCE <fromToken> <toToken> +alice -bob ...   (net changes)
+ *                       or PRESENCE_SNAPSHOT <token> <u1,u2,...>            (when too far behind)
+ * Sending PRESENCE also subscribes the connection: from then on it gets one
+ * PRESENCE delta per PRESENCE_TICK_MS while users come and go, or a
+ * PRESENCE_SNAPSHOT if more changed in one tick than the change log holds.
+ *
+ * "joined/left the chat" lines are batched per ANNOUNCE_TICK_MS into one summary
+ * ("alice, bob and 312 others joined the chat") and dropped altogether once more
+ * than ANNOUNCE_MAX_ROOM users are online (-Dchat.announceMaxRoom=N).
+ *
+ * Each connection has two outbound lanes. FILE/FILE_DATA/FILE_END, "OK resume",
+ * SYNC and HISTORY replies go on the bulk lane, and everything else is interactive and may
+ * arrive in between them (-Dchat.laneWeight=N interactive lines per bulk line while
+ * both are waiting). Lines on one lane keep their order.
+ *
+ * Interrupted downloads (the transfer is kept for TRANSFER_TTL_MS after ATTACH_END):
+ *   FILE_RESUME <id> <offset>   -> OK resume <id> <offset>, FILE_DATA from that byte on, FILE_END
+ *   FILE_PROGRESS <id>          -> FILE_PROGRESS <id> <finished>/<recipients> <bytesDelivered>
+ * Both answer only for files the asker was sent (any #general file, or a DM file to or
+ * from them). A FILE_RESUME stops whatever delivery of that file to them is still running.
+ *
+ * Keepalive: a connection that has sent nothing for PING_AFTER_MS gets "PING" and
+ * should answer "PONG" (any line counts). After IDLE_TIMEOUT_MS of silence it is
+ * closed, which frees its username. Clients may also send PING and get PONG.
+ *   STATS -> STATS online=<n> connections=<n> reaped=<n> pings=<n> logDropped=<n>
+ *   STATS shards -> one "SHARD <i> sessions=<n> queued=<n> broadcasts=<n> lines=<n> avgUs=<n> maxUs=<n>"
+ *                   per fan-out shard, then "OK shards <n>" (maxUs is since the previous call)
+ *
+ * Compression (opt-in, any time after the greeting):
+ *   COMPRESS deflate   -> OK compress deflate
+ * After the OK line both directions are a raw deflate stream, sync-flushed at
+ * every line. The client must not send anything between COMPRESS and the OK.
+ * FILE_DATA of already-compressed file types is sent in stored blocks.
+ *
+ * Retries: MSG, DM and ATTACH may be prefixed with a client-chosen id,
+ *   CID <clientId> MSG #general <text>   -> (the MSG line) + OK id <clientId> <seq>
+ *   CID <clientId> DM <user> <text>      -> OK dm sent to <user> + OK id <clientId> <seq>
+ *   CID <clientId> ATTACH ...            -> as ATTACH; OK id <clientId> <fileId> after ATTACH_END
+ * Sending the same CID line again within DEDUPE_WINDOW_MS gets
+ * "OK id <clientId> <originalId> dup" and is not posted twice. A retried ATTACH
+ * whose upload is still staged resumes it ("OK resume <uploadId> <committed>").
+ * Ids are remembered per node (see {@link RecentIds}).
+ *
+ * History lives in a {@link MessageStore}: segmented files under the data dir by
+ * default, or -Dchat.store=memory. -Dchat.retentionDays=N drops older messages.
+ *
+ * Offline delivery:
+ * DMs and DM files to a registered user who is offline on every
+ * node are kept in their {@link Mailbox} (mailbox/ under the data dir, at most
+ * MAILBOX_MAX bytes per user, -Dchat.mailboxMax=N) and answered with
+ * "OK dm queued for <user>". At LOGIN the queue is sent in one burst before the
+ * user receives any live traffic, followed by "OK mailbox delivered <n>". If the
+ * user logs in on another node, the queue is routed there.
+ *
+ * Logging goes through {@link Log}: handler threads only drop an event into a ring
+ * buffer; a background thread writes data/logs/server.log (rotated) and stdout.
+ *
+ * Clustering: start several nodes with --node/--bus/--peers and they share
+ * presence, #general and DM routing over a {@link ClusterBus}.
+ *   java server.ChatServer 5050 --node 1 --bus 6050 --peers 127.0.0.1:6051
+ *   java server.ChatServer 5051 --node 2 --bus 6051 --peers 127.0.0.1:6050
  */
 public class ChatServer {
     private final int port;
@@ -39,49 +134,408 @@ public class ChatServer {
     private final Map<String, String> creds = new ConcurrentHashMap<>();
     private final File userFile = new File("users.db");
 
-    // For FILE/attachment ids
-    private final AtomicLong nextId = new AtomicLong(1);
+    // For FILE/attachment ids. The node id sits in the high bits so ids stay unique across a cluster.
+    private final AtomicLong nextId;
+
+    // Message history per channel ("#general", "@alice+bob"); MSG/DM ids are its sequence numbers
+    private final File dataDir;
+    private final MessageStore store;
+
+    // Single writer that numbers and sends #general (see publishGeneral)
+    private final Sequencer general;
+
+    // Logged-in sessions split over one writer thread per core; broadcasts fan out through these
+    private final Shards<ClientSession> shards = new Shards<>("fanout-shard", SHARDS, ClientSession::postBatch);
+
+    // Other nodes of the cluster (inactive when no bus port is configured)
+    private final ClusterBus cluster;
+
+    // Who is online cluster-wide, plus the sessions that asked for PRESENCE deltas
+    private final Presence presence = new Presence();
+    private final Set<ClientSession> presenceSubs = ConcurrentHashMap.newKeySet();
+    private long presencePushed = 0; // only touched by the timer thread
+
+    // Keepalive / idle reaping for every connection runs on one wheel
+    private final HashedWheelTimer wheel = new HashedWheelTimer("keepalive", 100, 1024);
+    // Writes lines that threads which must never block only queued (see ClientSession.post):
+    // the keepalive wheel and the fan-out shards
+    private final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "session-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong pingsSent = new AtomicLong();
+
+    // File fan-out: recent transfers (for FILE_RESUME) and the pool that pushes them
+    private final Map<Long, FileTransfer> transfers = new ConcurrentHashMap<>();
+    private final Map<Long, InboundFile> inboundFiles = new ConcurrentHashMap<>(); // arriving over the bus
+    private final File transfersDir;
+
+    // Uploads between ATTACH and ATTACH_END, by upload id
+    private final Map<String, StagedUpload> uploads = new ConcurrentHashMap<>();
+    private final File uploadsDir;
+    private final SecureRandom random = new SecureRandom();
+
+    // (user, client id) -> server id of recent tagged sends, for deduplicating retries
+    private final RecentIds recentIds = new RecentIds(DEDUPE_CAPACITY, DEDUPE_WINDOW_MS);
+
+    // Queued DMs/files for users who are offline everywhere
+    private final Mailbox mailbox;
+    private final ExecutorService fanout = Executors.newFixedThreadPool(FANOUT_THREADS, r -> {
+        Thread t = new Thread(r, "file-fanout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Joins/leaves waiting for the next announcement tick (guarded by announceLock)
+    private final Object announceLock = new Object();
+    private Set<String> joinedPending = new LinkedHashSet<>();
+    private Set<String> leftPending = new LinkedHashSet<>();
+
+    // Periodic housekeeping (presence pushes)
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "server-timer");
+        t.setDaemon(true);
+        return t;
+    });
 
     // Limits
     private static final int MAX_LINE  = 8192;   // allow big DATA lines
     private static final int MAX_TEXT  = 500;
     private static final String USER_RE = "[A-Za-z0-9_]{1,20}";
+    private static final String CID_RE = "[A-Za-z0-9_.-]{1,64}";
+    private static final int DEDUPE_CAPACITY = Integer.getInteger("chat.dedupeCapacity", 1 << 17);
+    private static final long DEDUPE_WINDOW_MS = Long.getLong("chat.dedupeWindowMs", 15 * 60_000);
+    private static final int SYNC_BATCH = 200;
+    private static final long PRESENCE_TICK_MS = 250;
+    private static final long ANNOUNCE_TICK_MS = 1000;
+    private static final int ANNOUNCE_MAX_ROOM = Integer.getInteger("chat.announceMaxRoom", 500);
+    private static final int ANNOUNCE_NAMES = 2;
+    private static final int FANOUT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int FANOUT_SLICE = 16;               // chunks per recipient before yielding
+    private static final long TRANSFER_TTL_MS = 10 * 60_000;
+    private static final int FILE_CHUNK = 3072;                // raw bytes per FILE_DATA line
+    private static final int LANE_WEIGHT = Math.max(1, Integer.getInteger("chat.laneWeight", 8));
+    private static final int BULK_LANE_MAX = Integer.getInteger("chat.bulkLaneMax", 64); // lines per session
+    private static final int INTERACTIVE_LANE_MAX = Integer.getInteger("chat.laneMax", 8192); // past this, disconnect
+    private static final long BULK_RETRY_MS = 5;
+    // a smaller kernel send buffer leaves more of a backlog in the lanes, where chat can overtake it
+    private static final int SEND_BUFFER = Integer.getInteger("chat.sendBuffer", 0); // 0 = OS default
+
+    private static final long MAX_UPLOAD = Long.getLong("chat.maxUpload", 512L << 20);
+    private static final long UPLOAD_QUOTA_USER = Long.getLong("chat.uploadQuotaUser", 1L << 30);
+    private static final long UPLOAD_QUOTA_TOTAL = Long.getLong("chat.uploadQuotaTotal", 8L << 30);
+    private static final long UPLOAD_TTL_MS = 60 * 60_000;
+    private static final long MAILBOX_MAX = Long.getLong("chat.mailboxMax", 64L << 20);
+    private static final long SEGMENT_BYTES = Long.getLong("chat.segmentBytes", 16L << 20);
+    private static final int GENERAL_RING = 1 << 14;
+    private static final int SHARDS = Math.max(1, Integer.getInteger("chat.shards", Runtime.getRuntime().availableProcessors()));
+    private static final long RETENTION_MS = Long.getLong("chat.retentionDays", 0) * 24 * 60 * 60_000;
+    private static final long PING_AFTER_MS = Long.getLong("chat.pingAfterMs", 30_000);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("chat.idleTimeoutMs", 75_000);
 
-    public ChatServer(int port) { this.port = port; }
+    public ChatServer(int port) { this(port, 0, 0, List.of()); }
+
+    public ChatServer(int port, int nodeId, int busPort, List<InetSocketAddress> peers) {
+        this.port = port;
+        this.nextId = new AtomicLong(((long) nodeId << 48) + 1);
+        this.dataDir = new File(nodeId == 0 ? "data" : "data-node" + nodeId);
+        Log.init(new File(dataDir, "logs"));
+        this.uploadsDir = new File(dataDir, "uploads");
+        this.transfersDir = new File(dataDir, "transfers");
+        this.mailbox = new Mailbox(new File(dataDir, "mailbox"), MAILBOX_MAX);
+        this.store = "memory".equals(System.getProperty("chat.store"))
+                ? new InMemoryStore()
+                : new SegmentedFileStore(dataDir, SEGMENT_BYTES);
+        this.general = new Sequencer("general-seq", GENERAL_RING, this::publishGeneral);
+        this.cluster = new ClusterBus(nodeId, busPort, peers, clients.keySet(), new ClusterBus.Handler() {
+            @Override public void onGeneral(String from, String text) { general.publish(from, text, null); }
+            @Override public void onDm(String from, String to, String text) { deliverDM(from, to, text); }
+            @Override public void onGeneralLine(String line) {
+                if (!collectRemoteFile(null, line)) sendLocal(line);
+            }
+            @Override public void onLine(String user, String line) {
+                if (collectRemoteFile(user, line)) return;
+                ClientSession s = clients.get(user);
+                if (s != null) s.send(line);
+            }
+            @Override public void onPresence(String user, boolean online) {
+                presence.set(user, online);
+                if (online && !mailbox.isEmpty(user)) fanout.execute(() -> forwardMailbox(user));
+            }
+        });
+    }
 
     // ---------- lifecycle ----------
     public void start() throws IOException {
+        cluster.start();
+        timer.scheduleWithFixedDelay(this::pushPresence, PRESENCE_TICK_MS, PRESENCE_TICK_MS, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::flushAnnouncements, ANNOUNCE_TICK_MS, ANNOUNCE_TICK_MS, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::sweepUploads, 1, 1, TimeUnit.MINUTES);
+        if (RETENTION_MS > 0) timer.scheduleWithFixedDelay(this::applyRetention, 0, 1, TimeUnit.HOURS);
+        // staged/relayed files from a previous run have no owner any more
+        clearDir(uploadsDir);
+        clearDir(transfersDir);
         try (ServerSocket ss = new ServerSocket(port)) {
             log("Server listening on port " + port);
             while (true) {
                 Socket socket = ss.accept();
                 socket.setTcpNoDelay(true);
+                if (SEND_BUFFER > 0) socket.setSendBufferSize(SEND_BUFFER);
                 new Thread(new ClientHandler(socket)).start();
             }
         }
     }
 
+    private void applyRetention() {
+        long dropped = store.retain(RETENTION_MS);
+        if (dropped > 0) log("Retention dropped " + dropped + " old messages");
+    }
+
     // ---------- helpers ----------
-    private static void log(String s) { System.out.println("[SERVER] " + s); }
+    private static void log(String s) { Log.info("SERVER", s); }
+
+    private void broadcast(String from, String text) { broadcast(from, text, null); }
 
-    private void broadcast(String from, String text) {
-        String line = "MSG " + nextId.getAndIncrement() + " " + from + " #general " + text;
-        for (ClientSession s : clients.values()) s.send(line);
+    /** Posts to #general everywhere; {@code onSeq} gets this node's seq once the message went out. */
+    private void broadcast(String from, String text, LongConsumer onSeq) {
+        general.publish(from, text, onSeq);
+        cluster.publishGeneral(from, text);
     }
 
-    private void sendDM(String from, String to, String text) {
-    long id = nextId.getAndIncrement();
-    ClientSession tgt = clients.get(to);
-    if (tgt != null) {
-        tgt.send("DM " + id + " " + from + " " + text);
+    /*
+     * The #general sequencer's writer thread: the only thread that appends to #general,
+     * so seqs follow publish order. A run of messages is stored and handed to the
+     * shards as one broadcast; each shard queues it on its sessions as one entry,
+     * and shard queues are FIFO, so every session still sees #general in seq order.
+     * The onSeq callbacks (the sender's "OK id") run once every shard has queued the
+     * run and queue behind it on the same lane, so they never overtake the MSG line.
+     * They run on a shard thread and must not block.
+     */
+    private void publishGeneral(List<Sequencer.Event> batch) {
+        List<String> lines = new ArrayList<>(batch.size());
+        List<LongConsumer> done = null;
+        long[] seqs = null;
+        for (int i = 0; i < batch.size(); i++) {
+            Sequencer.Event e = batch.get(i);
+            String from = e.from, text = e.text;
+            lines.add(store.append("#general", seq -> "MSG " + seq + " " + from + " #general " + text));
+            if (e.onSeq != null) {
+                if (done == null) { done = new ArrayList<>(); seqs = new long[batch.size()]; }
+                seqs[done.size()] = seqOf(lines.get(i));
+                done.add(e.onSeq);
+            }
+        }
+        if (done == null) {
+            shards.broadcast(lines, null);
+        } else {
+            List<LongConsumer> cbs = done;
+            long[] ids = seqs;
+            shards.broadcast(lines, () -> { for (int i = 0; i < cbs.size(); i++) cbs.get(i).accept(ids[i]); });
+        }
+    }
+
+    private void sendLocal(String line) {
+        shards.broadcast(List.of(line), null);
+    }
+
+    // one net delta (or, past the change log, a snapshot) per tick to every subscriber,
+    // however many joins/leaves happened
+    private void pushPresence() {
+        long v = presence.version();
+        if (v == presencePushed) return;
+        String line = presence.deltaSince(presencePushed);
+        presencePushed = v;
+        if (line == null) return;
+        for (ClientSession s : presenceSubs) s.send(line);
+    }
+
+    private boolean isOnline(String user) {
+        return clients.containsKey(user) || cluster.isRemote(user);
+    }
+
+    /**
+     * Delivers, routes or queues a DM. Returns the seq it got in this node's log of the
+     * conversation, or -1 if it had to be queued and the mailbox is full.
+     */
+    private long sendDM(String from, String to, String text) {
+        if (clients.containsKey(to)) return deliverDM(from, to, text);
+        if (cluster.routeDm(from, to, text)) {
+            // keep the sender's side of the conversation in this node's log too
+            return seqOf(store.append(MessageStore.dmChannel(from, to), seq -> "DM " + seq + " " + from + " " + text));
+        }
+        return storeDM(from, to, text);
+    }
+
+    // recipient is offline everywhere: log the DM and queue the line in their mailbox
+    private long storeDM(String from, String to, String text) {
+        synchronized (mailbox.lock(to)) {
+            if (clients.containsKey(to)) return deliverDM(from, to, text); // just logged in
+            if (!mailbox.hasRoom(to, text.length() * 4L + 64)) return -1;
+            String line = store.append(MessageStore.dmChannel(from, to), seq -> "DM " + seq + " " + from + " " + text);
+            try {
+                return mailbox.offer(to, line) ? seqOf(line) : -1;
+            } catch (IOException e) {
+                log("Could not queue DM for " + to + ": " + e);
+                return -1;
+            }
+        }
+    }
+
+    private long deliverDM(String from, String to, String text) {
+        String line = store.append(MessageStore.dmChannel(from, to), seq -> "DM " + seq + " " + from + " " + text);
+        ClientSession tgt = clients.get(to);
+        if (tgt != null) {
+            tgt.send(line);
+        }
+        return seqOf(line);
+    }
+
+    // ---------- offline mailbox ----------
+    /*
+     * Runs under mailbox.lock(user) right before the user is added to clients, so the
+     * queued lines reach the session ahead of anything live. The cursor is acked only
+     * once the batch is flushed to the socket, and only if this session is still the
+     * user's: if the write fails or the user has logged in again meanwhile, the
+     * lines stay queued for the next login. File bodies are copied out for delivery
+     * and the mailbox copies go only with the ack, so a redelivered FILE line still
+     * finds its body. Returns the queued files, to be started once the user is in clients.
+     */
+    private List<FileTransfer> deliverMailbox(String user, ClientSession s) throws IOException {
+        Mailbox.Batch b = mailbox.take(user);
+        if (b.lines.isEmpty()) return List.of();
+        List<String> out = new ArrayList<>();
+        List<FileTransfer> files = new ArrayList<>();
+        for (String l : b.lines) {
+            if (!l.startsWith("FILE ")) out.add(l);
+            else {
+                FileTransfer t = queuedFile(user, l);
+                if (t != null) files.add(t);
+            }
+        }
+        out.add("OK mailbox delivered " + b.lines.size());
+        // off the writing thread, and after login has put the session in clients
+        s.sendBatch(out, () -> timer.execute(() -> ackMailbox(user, s, b)));
+        return files;
+    }
+
+    private void ackMailbox(String user, ClientSession s, Mailbox.Batch b) {
+        synchronized (mailbox.lock(user)) {
+            if (clients.get(user) != s) return;
+            ackMailbox(user, b);
+        }
+    }
+
+    // caller holds mailbox.lock(user); the batch went out, so its file bodies go too
+    private void ackMailbox(String user, Mailbox.Batch b) {
+        try {
+            mailbox.ack(user, b.end);
+        } catch (IOException e) {
+            log("Could not ack mailbox of " + user + ": " + e);
+            return;
+        }
+        for (String l : b.lines) {
+            String[] p = l.split(" ", 3);
+            if (p[0].equals("FILE") && p.length == 3) mailbox.fileFor(user, p[1]).delete();
+        }
+    }
+
+    // the user showed up on another node: route the queue there
+    private void forwardMailbox(String user) {
+        synchronized (mailbox.lock(user)) {
+            if (!cluster.isRemote(user)) return;
+            try {
+                Mailbox.Batch b = mailbox.take(user);
+                for (String l : b.lines) {
+                    if (!l.startsWith("FILE ")) { cluster.routeLine(user, l); continue; }
+                    FileTransfer t = queuedFile(user, l);
+                    if (t != null) fanout.execute(() -> { forward(t, t.headFor(user), user); t.close(); });
+                }
+                ackMailbox(user, b);
+            } catch (IOException e) {
+                log("Could not forward mailbox of " + user + ": " + e);
+            }
+        }
+    }
+
+    // recipient is offline everywhere: keep a copy of the file and its FILE line for them
+    private boolean queueFile(String to, String head, File data) throws IOException {
+        synchronized (mailbox.lock(to)) {
+            if (clients.containsKey(to) || !mailbox.hasRoom(to, data.length())) return false;
+            String key = Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+            File dst = mailbox.fileFor(to, key);
+            Files.copy(data.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // queued as "FILE <key> <from> <filename> <size>"; the real id is handed out at delivery
+            if (mailbox.offer(to, "FILE " + key + head.substring(head.indexOf(' ', 5)))) return true;
+            dst.delete();
+            return false;
+        }
     }
-}
 
+    private FileTransfer queuedFile(String user, String line) throws IOException {
+        String[] p = line.split(" ");
+        File f = (p.length >= 5) ? mailbox.fileFor(user, p[1]) : null;
+        if (f == null || !f.exists()) {
+            log("Queued file for " + user + " is gone: " + line);
+            return null;
+        }
+        long id = nextId.getAndIncrement();
+        File copy = new File(transfersDir, id + ".bin");
+        Files.copy(f.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FileTransfer t = new FileTransfer(id, p[p.length - 2], copy, null);
+        p[1] = Long.toString(id);
+        t.heads.put(user, String.join(" ", p));
+        return t;
+    }
+
+    // ---------- join/leave announcements ----------
+    private void announce(String user, boolean joined) {
+        synchronized (announceLock) {
+            // joined and left again within one tick: nothing to say
+            Set<String> undo = joined ? leftPending : joinedPending;
+            if (!undo.remove(user)) (joined ? joinedPending : leftPending).add(user);
+        }
+    }
+
+    private void flushAnnouncements() {
+        Set<String> joined, left;
+        synchronized (announceLock) {
+            if (joinedPending.isEmpty() && leftPending.isEmpty()) return;
+            joined = joinedPending;
+            left = leftPending;
+            joinedPending = new LinkedHashSet<>();
+            leftPending = new LinkedHashSet<>();
+        }
+        if (presence.size() > ANNOUNCE_MAX_ROOM) return; // too big a room for per-user noise
+        if (!joined.isEmpty()) broadcast("server", summarize(joined) + " joined the chat");
+        if (!left.isEmpty())   broadcast("server", summarize(left) + " left the chat");
+    }
+
+    // "alice", "alice and bob", "alice, bob and carol", "alice, bob and 312 others"
+    private static String summarize(Collection<String> names) {
+        List<String> l = new ArrayList<>(names);
+        int n = l.size();
+        if (n == 1) return l.get(0);
+        if (n <= ANNOUNCE_NAMES + 1) return String.join(", ", l.subList(0, n - 1)) + " and " + l.get(n - 1);
+        return String.join(", ", l.subList(0, ANNOUNCE_NAMES)) + " and " + (n - ANNOUNCE_NAMES) + " others";
+    }
+
+    private void addClient(String username, ClientSession s) {
+        clients.put(username, s);
+        shards.add(s);
+        presence.set(username, true);
+        cluster.userJoined(username);
+    }
 
     private void removeClient(String username) {
         if (username != null) {
-            clients.remove(username);
-            broadcast("server", username + " left the chat");
+            ClientSession s = clients.remove(username);
+            if (s != null) shards.remove(s);
+            presence.set(username, false);
+            cluster.userLeft(username);
+            announce(username, false);
             log("Disconnected: " + username);
         }
     }
@@ -117,85 +571,258 @@ public class ChatServer {
     }
 
     // ---------- relay helpers for attachments ----------
-    private void relayFileGeneral(String from, String filename, long size, List<String> chunks) {
+    /*
+     * Every recipient gets its own Delivery that sends FANOUT_SLICE chunks and then
+     * re-queues itself on the fan-out pool, so all recipients advance together
+     * instead of one after another. The transfer stays around for TRANSFER_TTL_MS
+     * so a recipient who dropped mid-way can FILE_RESUME <id> <offset>.
+     * File contents live on disk and are read FILE_CHUNK bytes per FILE_DATA line.
+     */
+    private long relayFileGeneral(String from, String filename, File data) throws IOException {
         long id = nextId.getAndIncrement();
-        String head = "FILE " + id + " " + from + " #general " + filename + " " + size;
-        for (ClientSession s : clients.values()) {
-            s.send(head);
-            for (String c : chunks) s.send("FILE_DATA " + id + " " + c);
-            s.send("FILE_END " + id);
-        }
+        String head = "FILE " + id + " " + from + " #general " + filename + " " + data.length();
+        FileTransfer t = new FileTransfer(id, filename, moveToTransfers(id, data), head);
+        startTransfer(t, clients.keySet());
+        // other nodes get the file once and fan it out to their own sessions
+        if (cluster.enabled()) fanout.execute(() -> forward(t, head, null));
+        return id;
     }
 
-    private void relayFileDm(String from, String to, String filename, long size, List<String> chunks) {
+    private long relayFileDm(String from, String to, String filename, File data) throws IOException {
         long id = nextId.getAndIncrement();
-        ClientSession tgt = clients.get(to);
-        ClientSession me  = clients.get(from);
-        if (tgt != null) {
-            tgt.send("FILE " + id + " " + from + " " + filename + " " + size);
-            for (String c : chunks) tgt.send("FILE_DATA " + id + " " + c);
-            tgt.send("FILE_END " + id);
+        long size = data.length();
+        String head = "FILE " + id + " " + from + " " + filename + " " + size;
+        boolean queued = !clients.containsKey(to) && !cluster.isRemote(to) && queueFile(to, head, data);
+        FileTransfer t = new FileTransfer(id, filename, moveToTransfers(id, data), null);
+        t.heads.put(from, "FILE " + id + " " + from + " [to " + to + "] " + filename + " " + size);
+        if (clients.containsKey(to)) {
+            t.heads.put(to, head);
+        } else if (!queued) {
+            fanout.execute(() -> forward(t, head, to));
+        }
+        startTransfer(t, t.heads.keySet());
+        return id;
+    }
+
+    private File moveToTransfers(long id, File data) throws IOException {
+        File dst = new File(transfersDir, id + ".bin");
+        if (!data.renameTo(dst)) throw new IOException("cannot move " + data + " to " + dst);
+        return dst;
+    }
+
+    private void startTransfer(FileTransfer t, Collection<String> recipients) {
+        transfers.put(t.id, t);
+        wheel.schedule(() -> {
+            transfers.remove(t.id);
+            t.close();
+        }, TRANSFER_TTL_MS);
+        for (String user : new ArrayList<>(recipients)) {
+            ClientSession s = clients.get(user);
+            if (s != null) fanout.execute(deliver(t, user, s, 0));
+        }
+    }
+
+    // one running Delivery per recipient: a new one (FILE_RESUME) stops the old one,
+    // waiting for the slice it may be writing right now
+    private Delivery deliver(FileTransfer t, String user, ClientSession s, long offset) {
+        Delivery d = new Delivery(t, user, s, offset);
+        Delivery old = t.deliveries.put(user, d);
+        if (old != null) old.cancel();
+        return d;
+    }
+
+    // streams a transfer over the bus: to every node (user == null) or to the node holding user
+    private void forward(FileTransfer t, String head, String user) {
+        byte[] buf = new byte[FILE_CHUNK];
+        try {
+            busLine(user, head);
+            for (long pos = 0; pos < t.size; ) {
+                int n = t.read(pos, buf);
+                busLine(user, "FILE_DATA " + t.id + " " + base64(buf, n));
+                pos += n;
+            }
+            busLine(user, "FILE_END " + t.id);
+        } catch (IOException e) {
+            log("Could not forward file " + t.id + ": " + e);
+        }
+    }
+
+    private void busLine(String user, String line) {
+        if (user == null) cluster.publishGeneralLine(line);
+        else cluster.routeLine(user, line);
+    }
+
+    /*
+     * File lines arriving from another node: spool them to disk and fan out from
+     * here, so recipients on this node get the same parallel delivery and can
+     * resume. GLINE files go to everyone, LINE files to that one user.
+     */
+    private boolean collectRemoteFile(String user, String line) {
+        try {
+            if (line.startsWith("FILE ")) {
+                String[] p = line.split(" ");
+                if (p.length < 5) return false;
+                long id = parseLongSafe(p[1]);
+                inboundFiles.put(id, new InboundFile(user, line, p[p.length - 2], new File(transfersDir, id + ".part")));
+                return true;
+            }
+            if (line.startsWith("FILE_DATA ")) {
+                String[] p = line.split(" ", 3);
+                InboundFile f = (p.length == 3) ? inboundFiles.get(parseLongSafe(p[1])) : null;
+                if (f == null) return false;
+                f.out.write(Base64.getDecoder().decode(p[2]));
+                return true;
+            }
+            if (line.startsWith("FILE_END ")) {
+                long id = parseLongSafe(line.substring(9).trim());
+                InboundFile f = inboundFiles.remove(id);
+                if (f == null) return false;
+                f.out.close();
+                FileTransfer t = new FileTransfer(id, f.filename, moveToTransfers(id, f.file), f.user == null ? f.head : null);
+                if (f.user != null) t.heads.put(f.user, f.head);
+                startTransfer(t, f.user == null ? clients.keySet() : List.of(f.user));
+                return true;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log("Dropping file from bus: " + e);
+            return true;
         }
-        if (me != null) {
-            me.send("FILE " + id + " " + from + " [to " + to + "] " + filename + " " + size);
-            for (String c : chunks) me.send("FILE_DATA " + id + " " + c);
-            me.send("FILE_END " + id);
+        return false;
+    }
+
+    private static long parseLongSafe(String s) {
+        try { return Long.parseLong(s); } catch (NumberFormatException e) { return -1; }
+    }
+
+    private static String base64(byte[] buf, int n) {
+        return Base64.getEncoder().encodeToString(n == buf.length ? buf : Arrays.copyOf(buf, n));
+    }
+
+    /** Pushes one transfer to one session, a slice at a time. */
+    private final class Delivery implements Runnable {
+        private final FileTransfer t;
+        private final String user;
+        private final ClientSession s;
+        private final byte[] buf = new byte[FILE_CHUNK];
+        private long pos;
+        private boolean headSent;
+        private boolean cancelled;
+
+        Delivery(FileTransfer t, String user, ClientSession s, long offset) {
+            this.t = t;
+            this.user = user;
+            this.s = s;
+            this.pos = offset;
+            this.headSent = offset > 0; // resuming: the recipient already has the FILE line
+        }
+
+        // The whole transfer goes through the session's bulk lane, which keeps FILE,
+        // FILE_DATA and FILE_END in order while chat lines overtake them. Once the
+        // lane holds BULK_LANE_MAX lines this stops reading and retries a little later,
+        // so a slow recipient holds one lane's worth of the file in memory, not all of it.
+        @Override public synchronized void run() {
+            if (cancelled) return;
+            if (clients.get(user) != s) return; // gone; progress stays for FILE_RESUME
+            if (!headSent) {
+                s.sendBulk(t.headFor(user), false);
+                headSent = true;
+            }
+            try {
+                for (int i = 0; i < FANOUT_SLICE && pos < t.size && s.bulkBacklog() < BULK_LANE_MAX; i++) {
+                    int n = t.read(pos, buf);
+                    s.sendBulk("FILE_DATA " + t.id + " " + base64(buf, n), t.stored);
+                    pos += n;
+                    t.progress.put(user, pos);
+                }
+            } catch (IOException e) {
+                log("File " + t.id + " to " + user + " stopped: " + e);
+                return;
+            }
+            if (pos >= t.size) {
+                s.sendBulk("FILE_END " + t.id, false);
+                t.progress.put(user, t.size);
+                t.deliveries.remove(user, this);
+            } else if (s.bulkBacklog() >= BULK_LANE_MAX) {
+                timer.schedule(() -> fanout.execute(this), BULK_RETRY_MS, TimeUnit.MILLISECONDS);
+            } else {
+                fanout.execute(this);
+            }
+        }
+
+        /** Stops this delivery after the slice it is writing, if any. */
+        synchronized void cancel() { cancelled = true; }
+    }
+
+    // ---------- staged uploads ----------
+    // declared bytes of uploads still staged, in total or for one owner
+    private long stagedBytes(String owner) {
+        long sum = 0;
+        for (StagedUpload u : uploads.values()) if (owner == null || u.owner.equals(owner)) sum += u.size;
+        return sum;
+    }
+
+    private void sweepUploads() {
+        long now = System.currentTimeMillis();
+        for (StagedUpload u : uploads.values()) {
+            if (u.attached == null && now - u.touched > UPLOAD_TTL_MS && uploads.remove(u.id, u)) {
+                u.discard();
+                log("Expired staged upload " + u.id + " of " + u.owner);
+            }
         }
     }
 
+    private static void clearDir(File dir) {
+        File[] left = dir.listFiles();
+        if (left != null) for (File f : left) f.delete();
+        dir.mkdirs();
+    }
+
     // ---------- per-connection handler ----------
     private class ClientHandler implements Runnable {
         private final Socket socket;
         private String username = null;
-        private PrintWriter out;
-        private BufferedReader in;
+        private ClientSession session;
+        private LineReader in;
+        private volatile long lastRead = System.nanoTime();
 
-        // attachment upload state (per-connection)
-        private boolean uploading = false;
-        private boolean uploadIsGeneral = false;
-        private String  uploadPeer = null;
-        private String  uploadFile = null;
-        private long    uploadSize = 0;
-        private final List<String> uploadChunks = new ArrayList<>();
+        // attachment upload this connection is feeding (null when not uploading)
+        private StagedUpload upload = null;
+        // client id of the line being handled (null if untagged)
+        private String cid = null;
 
         ClientHandler(Socket socket) { this.socket = socket; }
 
         @Override public void run() {
             try (socket) {
-                in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                connections.incrementAndGet();
+                in = new LineReader(new BufferedInputStream(socket.getInputStream()), MAX_LINE);
+                session = new ClientSession(new BufferedOutputStream(socket.getOutputStream()), writers, socket);
 
-                out.println("OK Welcome. Use: REGISTER <user> <pass>  or  LOGIN <user> [pass]");
+                wheel.schedule(this::checkIdle, PING_AFTER_MS);
+
+                session.send("OK Welcome. Use: REGISTER <user> <pass>  or  LOGIN <user> [pass]");
 
                 String line;
                 while ((line = in.readLine()) != null) {
-                    if (line.length() > MAX_LINE) { out.println("ERR line too long"); continue; }
+                    if (in.tooLong() || line.length() > MAX_LINE) { session.send("ERR line too long"); continue; }
                     line = line.trim();
                     if (line.isEmpty()) continue;
 
-                    // If currently in upload mode, only allow DATA / ATTACH_END
-                    if (uploading) {
-                        if (line.startsWith("DATA ")) {
-                            String base64 = line.substring(5).trim();
-                            if (!base64.isEmpty()) uploadChunks.add(base64);
-                            else out.println("ERR DATA requires payload");
-                            continue;
-                        } else if ("ATTACH_END".equalsIgnoreCase(line)) {
-                            if (uploadIsGeneral) relayFileGeneral(username, uploadFile, uploadSize, uploadChunks);
-                            else                 relayFileDm(username, uploadPeer, uploadFile, uploadSize, uploadChunks);
-                            out.println("OK file sent");
-                            // reset upload state
-                            uploading = false;
-                            uploadIsGeneral = false;
-                            uploadPeer = null;
-                            uploadFile = null;
-                            uploadSize = 0;
-                            uploadChunks.clear();
-                            continue;
-                        } else {
-                            out.println("ERR currently uploading; send DATA <base64> or ATTACH_END");
-                            continue;
-                        }
+                    // any line is a sign of life for the keepalive check; PONG carries nothing else
+                    lastRead = System.nanoTime();
+                    if ("PONG".equals(line)) continue;
+
+                    // In upload mode CHUNK / DATA / ATTACH_END / ATTACH_ABORT feed the upload;
+                    // anything else is handled as usual, so chat keeps working meanwhile
+                    if (upload != null && feedUpload(line)) continue;
+
+                    // CID <clientId> <MSG|DM|ATTACH ...>: tags a send so a retry can be recognised
+                    cid = null;
+                    if (line.startsWith("CID ")) {
+                        String[] c = line.split("\\s+", 3);
+                        if (c.length < 3 || !c[1].matches(CID_RE)) { session.send("ERR usage: CID <clientId> <command>"); continue; }
+                        cid = c[1];
+                        line = c[2];
                     }
 
                     String[] parts = line.split("\\s+", 3); // cmd, arg1, rest
@@ -203,148 +830,797 @@ public class ChatServer {
 
                     switch (cmd) {
                         case "REGISTER": {
-                            if (parts.length < 3) { out.println("ERR usage: REGISTER <user> <pass>"); break; }
+                            if (parts.length < 3) { session.send("ERR usage: REGISTER <user> <pass>"); break; }
                             String u = parts[1].trim();
                             String p = parts[2].trim();
-                            if (!u.matches(USER_RE)) { out.println("ERR invalid username"); break; }
-                            if (p.isBlank())         { out.println("ERR password required"); break; }
-                            if (creds.containsKey(u)){ out.println("ERR username exists"); break; }
+                            if (!u.matches(USER_RE)) { session.send("ERR invalid username"); break; }
+                            if (p.isBlank())         { session.send("ERR password required"); break; }
+                            if (creds.containsKey(u)){ session.send("ERR username exists"); break; }
                             String h = sha256(p); // simple hash (keep consistent with your earlier file)
                             creds.put(u, h);
                             saveUser(u, h);
-                            out.println("OK registered " + u);
+                            session.send("OK registered " + u);
                             break;
                         }
 
                         case "LOGIN": {
-                            if (username != null) { out.println("ERR already logged in"); break; }
-                            if (parts.length < 2) { out.println("ERR usage: LOGIN <user> [pass]"); break; }
+                            if (username != null) { session.send("ERR already logged in"); break; }
+                            if (parts.length < 2) { session.send("ERR usage: LOGIN <user> [pass]"); break; }
                             String u = parts[1];
                             String pass = (parts.length >= 3) ? parts[2] : null;
-                            if (!u.matches(USER_RE)) { out.println("ERR invalid username"); break; }
+                            if (!u.matches(USER_RE)) { session.send("ERR invalid username"); break; }
 
                             boolean credentialedMode = !creds.isEmpty();
                             if (!credentialedMode) {
-                                if (clients.containsKey(u)) { out.println("ERR username taken"); break; }
-                                username = u;
-                                clients.put(username, new ClientSession(username, out));
-                                out.println("OK logged in as " + username);
-                                broadcast("server", username + " joined the chat");
+                                if (isOnline(u)) { session.send("ERR username taken"); break; }
+                                login(u);
                                 break;
                             }
                             String stored = creds.get(u);
-                            if (stored == null) { out.println("ERR unknown user"); break; }
-                            if (pass == null || !stored.equals(sha256(pass))) { out.println("ERR bad password"); break; }
-                            if (clients.containsKey(u)) { out.println("ERR user already online"); break; }
-
-                            username = u;
-                            clients.put(username, new ClientSession(username, out));
-                            out.println("OK logged in as " + username);
-                            broadcast("server", username + " joined the chat");
+                            if (stored == null) { session.send("ERR unknown user"); break; }
+                            if (pass == null || !stored.equals(sha256(pass))) { session.send("ERR bad password"); break; }
+                            if (isOnline(u)) { session.send("ERR user already online"); break; }
+
+                            login(u);
                             break;
                         }
 
                         case "MSG": {
                             if (!ensureLogin()) break;
-                            if (parts.length < 3) { out.println("ERR usage: MSG #general <text>"); break; }
-                            if (!"#general".equals(parts[1])) { out.println("ERR only #general is supported"); break; }
+                            if (parts.length < 3) { session.send("ERR usage: MSG #general <text>"); break; }
+                            if (!"#general".equals(parts[1])) { session.send("ERR only #general is supported"); break; }
                             String text = parts[2];
-                            if (text.length() > MAX_TEXT) { out.println("ERR message too long"); break; }
-                            broadcast(username, text);
+                            if (text.length() > MAX_TEXT) { session.send("ERR message too long"); break; }
+                            if (replayed(cid)) break;
+                            String c = cid;
+                            broadcast(username, text, (c == null) ? null : seq -> rememberQueued(c, seq));
                             break;
                         }
 
                         case "DM": {
                             if (!ensureLogin()) break;
-                            if (parts.length < 3) { out.println("ERR usage: DM <user> <text>"); break; }
-                            String[] p2 = parts[2].split("\\s+", 2);
-                            if (p2.length < 2) { out.println("ERR usage: DM <user> <text>"); break; }
-                            String to = p2[0];
-                            String text = p2[1];
-                            if (!clients.containsKey(to)) { out.println("ERR user not online"); break; }
-                            if (text.length() > MAX_TEXT) { out.println("ERR message too long"); break; }
-                            sendDM(username, to, text);
-                            out.println("OK dm sent to " + to);
+                            if (parts.length < 3) { session.send("ERR usage: DM <user> <text>"); break; }
+                            String to = parts[1];
+                            String text = parts[2];
+                            boolean online = isOnline(to);
+                            if (!online && !creds.containsKey(to)) { session.send("ERR user not online"); break; }
+                            if (text.length() > MAX_TEXT) { session.send("ERR message too long"); break; }
+                            if (replayed(cid)) break;
+                            long seq = sendDM(username, to, text);
+                            if (seq < 0) { session.send("ERR mailbox of " + to + " is full"); break; }
+                            session.send(online ? "OK dm sent to " + to : "OK dm queued for " + to);
+                            remember(cid, seq);
+                            break;
+                        }
+
+                        case "SYNC": {
+                            if (!ensureLogin()) break;
+                            if (parts.length < 3) { session.send("ERR usage: SYNC (#general|@<user>) <sinceSeq>"); break; }
+                            String ch = parts[1];
+                            long since;
+                            try { since = Long.parseLong(parts[2].trim()); }
+                            catch (Exception e) { session.send("ERR seq must be number"); break; }
+                            String name;
+                            List<String> missed;
+                            if ("#general".equals(ch)) {
+                                name = ch;
+                                missed = store.read(name, since, SYNC_BATCH);
+                            } else if (ch.startsWith("@") && ch.substring(1).matches(USER_RE)) {
+                                name = MessageStore.dmChannel(username, ch.substring(1));
+                                missed = store.readDm(username, ch.substring(1), since, SYNC_BATCH);
+                            } else { session.send("ERR unknown channel"); break; }
+                            // backfill rides the bulk lane so live traffic isn't stuck behind it
+                            long last = missed.isEmpty() ? since : seqOf(missed.get(missed.size() - 1));
+                            List<String> out = new ArrayList<>(missed);
+                            out.add("SYNC_END " + ch + " " + last + " " + store.head(name));
+                            session.sendBulkBatch(out);
+                            break;
+                        }
+
+                        case "HISTORY": {
+                            if (!ensureLogin()) break;
+                            if (parts.length < 3) { session.send("ERR usage: HISTORY (#general|@<user>) <beforeSeq> [max]"); break; }
+                            String ch = parts[1];
+                            String[] more = parts[2].trim().split("\\s+");
+                            long before;
+                            int max = SYNC_BATCH;
+                            try {
+                                before = Long.parseLong(more[0]);
+                                if (more.length > 1) max = Math.max(1, Math.min(SYNC_BATCH, Integer.parseInt(more[1])));
+                            } catch (Exception e) { session.send("ERR seq must be number"); break; }
+                            String name;
+                            if ("#general".equals(ch)) name = ch;
+                            else if (ch.startsWith("@") && ch.substring(1).matches(USER_RE)) name = MessageStore.dmChannel(username, ch.substring(1));
+                            else { session.send("ERR unknown channel"); break; }
+                            long head = store.head(name);
+                            if (before <= 0 || before > head) before = head + 1;
+                            List<String> out = new ArrayList<>(store.readBefore(name, before, max));
+                            // retention may have dropped the range asked for; never hand back newer lines
+                            while (!out.isEmpty() && seqOf(out.get(out.size() - 1)) >= before) out.remove(out.size() - 1);
+                            long first = out.isEmpty() ? 0 : seqOf(out.get(0));
+                            out.add("HISTORY_END " + ch + " " + first + " " + head);
+                            session.sendBulkBatch(out);
                             break;
                         }
 
                         case "USERS": {
                             if (!ensureLogin()) break;
-                            String list = String.join(",", clients.keySet());
-                            out.println("USERS " + list);
+                            session.send("USERS " + presence.csv());
+                            break;
+                        }
+
+                        case "PRESENCE": {
+                            if (!ensureLogin()) break;
+                            session.send(presence.catchUp(parts.length > 1 ? parts[1] : "0"));
+                            presenceSubs.add(session);
                             break;
                         }
 
                         case "ATTACH": {
                             if (!ensureLogin()) break;
                             if (parts.length < 3) {
-                                out.println("ERR usage: ATTACH (#general|<user>) <filename> <size>");
+                                session.send("ERR usage: ATTACH (#general|<user>) <filename> <size>");
                                 break;
                             }
+                            if (replayed(cid)) break;
+                            StagedUpload same = stagedFor(cid);
+                            if (same != null && (upload == null || upload == same)) { resumeUpload(same); break; } // retried before ATTACH_END
+                            if (upload != null) { session.send("ERR already uploading; ATTACH_END or ATTACH_ABORT first"); break; }
                             String target = parts[1];
                             String[] more = parts[2].split("\\s+");
                             if (more.length < 2) {
-                                out.println("ERR ATTACH missing filename/size");
+                                session.send("ERR ATTACH missing filename/size");
                                 break;
                             }
                             String filename = more[0];
                             long size;
                             try { size = Long.parseLong(more[1]); }
-                            catch (Exception e) { out.println("ERR size must be number"); break; }
-
-                            uploadFile = filename;
-                            uploadSize = size;
-                            uploadChunks.clear();
-
-                            if ("#general".equals(target)) {
-                                uploadIsGeneral = true;
-                                uploadPeer = null;
-                            } else {
-                                if (!clients.containsKey(target)) { out.println("ERR user not online"); break; }
-                                uploadIsGeneral = false;
-                                uploadPeer = target;
+                            catch (Exception e) { session.send("ERR size must be number"); break; }
+                            if (size < 0 || size > MAX_UPLOAD) { session.send("ERR size must be 0.." + MAX_UPLOAD); break; }
+                            if (!"#general".equals(target) && !isOnline(target)) {
+                                if (!creds.containsKey(target)) { session.send("ERR user not online"); break; }
+                                if (!mailbox.hasRoom(target, size)) { session.send("ERR mailbox of " + target + " is full"); break; }
+                            }
+                            if (stagedBytes(username) + size > UPLOAD_QUOTA_USER) { session.send("ERR upload quota exceeded"); break; }
+                            if (stagedBytes(null) + size > UPLOAD_QUOTA_TOTAL) { session.send("ERR server upload space full"); break; }
+
+                            String uid = Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+                            upload = new StagedUpload(uid, username, target, filename, size, new File(uploadsDir, uid + ".part"));
+                            upload.attached = this;
+                            upload.cid = cid;
+                            uploads.put(uid, upload);
+                            session.send("OK attach begin " + uid + "; send CHUNK <offset> <crc32> <base64> then ATTACH_END");
+                            break;
+                        }
+
+                        case "ATTACH_RESUME": {
+                            if (!ensureLogin()) break;
+                            StagedUpload u = (parts.length > 1) ? uploads.get(parts[1]) : null;
+                            if (u == null || !u.owner.equals(username)) { session.send("ERR unknown or expired upload"); break; }
+                            if (upload != null && upload != u) { session.send("ERR already uploading; ATTACH_END or ATTACH_ABORT first"); break; }
+                            resumeUpload(u);
+                            break;
+                        }
+
+                        case "FILE_RESUME": {
+                            if (!ensureLogin()) break;
+                            if (parts.length < 3) { session.send("ERR usage: FILE_RESUME <id> <offset>"); break; }
+                            FileTransfer t = transfers.get(parseLongSafe(parts[1]));
+                            long offset = parseLongSafe(parts[2].trim());
+                            if (t == null || !t.mayReceive(username)) { session.send("ERR unknown or expired file"); break; }
+                            if (offset < 0 || offset > t.size) { session.send("ERR bad offset"); break; }
+                            Delivery d = deliver(t, username, session, offset);
+                            session.sendBulk("OK resume " + t.id + " " + offset, false); // ahead of its FILE_DATA
+                            fanout.execute(d);
+                            break;
+                        }
+
+                        case "FILE_PROGRESS": {
+                            if (!ensureLogin()) break;
+                            FileTransfer t = (parts.length > 1) ? transfers.get(parseLongSafe(parts[1])) : null;
+                            if (t == null || !t.mayReceive(username)) { session.send("ERR unknown or expired file"); break; }
+                            long done = 0, bytes = 0;
+                            for (long p : t.progress.values()) {
+                                bytes += p;
+                                if (p == t.size) done++;
+                            }
+                            session.send("FILE_PROGRESS " + t.id + " " + done + "/" + t.progress.size() + " " + bytes);
+                            break;
+                        }
+
+                        case "PING": {
+                            session.send("PONG");
+                            break;
+                        }
+
+                        case "STATS": {
+                            if (parts.length > 1 && "shards".equalsIgnoreCase(parts[1])) {
+                                List<String> out = new ArrayList<>(shards.stats());
+                                out.add("OK shards " + shards.size());
+                                session.sendBatch(out);
+                                break;
+                            }
+                            session.send("STATS online=" + presence.size() + " connections=" + connections.get()
+                                    + " reaped=" + reaped.get() + " pings=" + pingsSent.get()
+                                    + " logDropped=" + Log.dropped());
+                            break;
+                        }
+
+                        case "COMPRESS": {
+                            if (parts.length < 2 || !"deflate".equalsIgnoreCase(parts[1])) {
+                                session.send("ERR usage: COMPRESS deflate");
+                                break;
                             }
-                            uploading = true;
-                            out.println("OK attach begin; send DATA <base64> then ATTACH_END");
+                            if (session.compressed()) { session.send("ERR already compressed"); break; }
+                            session.startDeflate("OK compress deflate");
+                            in = in.inflate();
                             break;
                         }
 
                         case "QUIT": {
-                            out.println("OK bye");
+                            session.send("OK bye");
                             return;
                         }
 
                         default:
-                            out.println("ERR unknown command");
+                            session.send("ERR unknown command");
                     }
                 }
             } catch (IOException ignored) {
             } finally {
+                StagedUpload u = upload;
+                if (u != null && u.attached == this) {
+                    u.attached = null; // stays staged for ATTACH_RESUME until UPLOAD_TTL_MS
+                    u.closeOutput();
+                }
+                connections.decrementAndGet();
+                if (session != null) presenceSubs.remove(session);
                 removeClient(username);
             }
         }
 
+        // true if the line belonged to the open upload
+        private boolean feedUpload(String line) throws IOException {
+            if (line.startsWith("CHUNK ")) {
+                onChunk(line);
+            } else if (line.startsWith("DATA ")) {
+                String base64 = line.substring(5).trim();
+                if (base64.isEmpty()) { session.send("ERR DATA requires payload"); return true; }
+                byte[] b;
+                try { b = Base64.getDecoder().decode(base64); }
+                catch (IllegalArgumentException e) { session.send("ERR bad base64"); return true; }
+                synchronized (upload) {
+                    if (upload.committed + b.length > upload.size) { session.send("ERR more data than declared size"); return true; }
+                    upload.append(b);
+                }
+            } else if ("ATTACH_END".equalsIgnoreCase(line)) {
+                finishUpload();
+            } else if ("ATTACH_ABORT".equalsIgnoreCase(line)) {
+                uploads.remove(upload.id);
+                upload.discard();
+                upload = null;
+                session.send("OK attach aborted");
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        // CHUNK <offset> <crc32hex> <base64>: only the next expected offset with a good checksum is taken.
+        // Checked and appended under the upload's lock, as a resumed connection may be feeding it too.
+        private void onChunk(String line) throws IOException {
+            String[] p = line.split(" ", 4);
+            StagedUpload u = upload;
+            if (p.length < 4) { session.send("ERR usage: CHUNK <offset> <crc32> <base64>"); return; }
+            byte[] b;
+            try { b = Base64.getDecoder().decode(p[3].trim()); }
+            catch (IllegalArgumentException e) { session.send("ERR bad base64"); return; }
+            CRC32 crc = new CRC32();
+            crc.update(b);
+            synchronized (u) {
+                if (parseLongSafe(p[1]) != u.committed) { session.send("NACK " + u.id + " " + u.committed + " offset"); return; }
+                if (!Long.toHexString(crc.getValue()).equalsIgnoreCase(p[2])) { session.send("NACK " + u.id + " " + u.committed + " crc"); return; }
+                if (u.committed + b.length > u.size) { session.send("NACK " + u.id + " " + u.committed + " size"); return; }
+                u.append(b);
+                session.send("ACK " + u.id + " " + u.committed);
+            }
+        }
+
+        // mailbox first, then live: nothing sent to the user can overtake the queued lines
+        private void login(String u) throws IOException {
+            username = u;
+            session.username = u;
+            session.send("OK logged in as " + u);
+            List<FileTransfer> files;
+            synchronized (mailbox.lock(u)) {
+                files = deliverMailbox(u, session);
+                addClient(u, session);
+            }
+            for (FileTransfer t : files) startTransfer(t, List.of(u));
+            announce(u, true);
+        }
+
+        // the upload stays staged until the relay has taken the file, so a failed
+        // ATTACH_END can be repeated, here or after ATTACH_RESUME
+        private void finishUpload() {
+            StagedUpload u = upload;
+            if (u.committed != u.size) {
+                session.send("ERR size mismatch: have " + u.committed + " of " + u.size + " bytes");
+                return;
+            }
+            u.closeOutput();
+            long fid;
+            try {
+                if (u.size == 0 && !u.file.exists() && !u.file.createNewFile()) throw new IOException("cannot create " + u.file);
+                fid = "#general".equals(u.target)
+                        ? relayFileGeneral(username, u.filename, u.file)
+                        : relayFileDm(username, u.target, u.filename, u.file);
+            } catch (IOException e) {
+                log("Upload " + u.id + " from " + username + " could not be sent: " + e);
+                session.send("ERR could not send file: " + e.getMessage());
+                return;
+            }
+            uploads.remove(u.id);
+            upload = null;
+            session.send("OK file sent " + fid);
+            remember(u.cid, fid);
+        }
+
+        private void resumeUpload(StagedUpload u) {
+            ClientHandler prev = u.attached;
+            if (prev != null && prev != this) prev.upload = null; // take over from a dead connection
+            upload = u;
+            u.attached = this;
+            u.touched = System.currentTimeMillis();
+            session.send("OK resume " + u.id + " " + u.committed);
+        }
+
+        private StagedUpload stagedFor(String cid) {
+            if (cid == null) return null;
+            for (StagedUpload u : uploads.values()) {
+                if (cid.equals(u.cid) && u.owner.equals(username)) return u;
+            }
+            return null;
+        }
+
+        // a retry of something already done: answer with the original id and do nothing
+        private boolean replayed(String cid) {
+            if (cid == null) return false;
+            long id = recentIds.get(username, cid);
+            if (id < 0) return false;
+            session.send("OK id " + cid + " " + id + " dup");
+            return true;
+        }
+
+        private void remember(String cid, long id) {
+            if (cid == null || id < 0) return;
+            recentIds.put(username, cid, id);
+            session.send("OK id " + cid + " " + id);
+        }
+
+        // the same from the shard that finished a #general broadcast: queue only, never write
+        private void rememberQueued(String cid, long id) {
+            recentIds.put(username, cid, id);
+            session.post("OK id " + cid + " " + id);
+        }
+
+        // Runs on the wheel thread, so it must never block: the PING is only queued (a
+        // session writer sends it) and the reaper just closes the socket.
+        private void checkIdle() {
+            if (socket.isClosed()) return;
+            long idle = (System.nanoTime() - lastRead) / 1_000_000;
+            if (idle >= IDLE_TIMEOUT_MS) {
+                reaped.incrementAndGet();
+                log("Reaping idle connection" + (username != null ? " of " + username : ""));
+                try { socket.close(); } catch (IOException ignored) {}
+                return;
+            }
+            if (idle >= PING_AFTER_MS) {
+                session.post("PING");
+                pingsSent.incrementAndGet();
+                wheel.schedule(this::checkIdle, IDLE_TIMEOUT_MS - idle);
+            } else {
+                wheel.schedule(this::checkIdle, PING_AFTER_MS - idle);
+            }
+        }
+
         private boolean ensureLogin() {
-            if (username == null) { out.println("ERR please LOGIN first"); return false; }
+            if (username == null) { session.send("ERR please LOGIN first"); return false; }
             return true;
         }
     }
 
+    private static long seqOf(String line) {
+        int a = line.indexOf(' ');
+        int b = line.indexOf(' ', a + 1);
+        return Long.parseLong(line.substring(a + 1, b));
+    }
+
+    // ---------- file transfer ----------
+    /** One relayed file: the data file on disk, per-recipient heads and delivery progress. */
+    private static final class FileTransfer {
+        final long id;
+        final long size;
+        final boolean stored;                 // send FILE_DATA in stored deflate blocks
+        final String generalHead;             // FILE line for everyone (#general), or null for DMs
+        final Map<String, String> heads = new ConcurrentHashMap<>();   // per-user FILE line
+        final Map<String, Long> progress = new ConcurrentHashMap<>();  // user -> bytes delivered
+        final Map<String, Delivery> deliveries = new ConcurrentHashMap<>(); // user -> the one running
+        private final File file;
+        private final FileChannel ch;
+
+        FileTransfer(long id, String filename, File file, String generalHead) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.size = file.length();
+            this.stored = FileTypes.isPrecompressed(filename);
+            this.generalHead = generalHead;
+            this.ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        String headFor(String user) { return heads.getOrDefault(user, generalHead); }
+
+        boolean mayReceive(String user) { return generalHead != null || heads.containsKey(user); }
+
+        /** Positional read, safe to call from several deliveries at once. */
+        int read(long pos, byte[] buf) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, size - pos));
+            while (bb.hasRemaining()) {
+                if (ch.read(bb, pos + bb.position()) < 0) throw new EOFException(file.toString());
+            }
+            return bb.position();
+        }
+
+        void close() {
+            try { ch.close(); } catch (IOException ignored) {}
+            file.delete();
+        }
+    }
+
+    /** A file arriving over the cluster bus, spooled to disk until its FILE_END. */
+    private static final class InboundFile {
+        final String user;      // null: for everyone
+        final String head;
+        final String filename;
+        final File file;
+        final OutputStream out;
+
+        InboundFile(String user, String head, String filename, File file) throws IOException {
+            this.user = user;
+            this.head = head;
+            this.filename = filename;
+            this.file = file;
+            this.out = new BufferedOutputStream(new FileOutputStream(file));
+        }
+    }
+
+    /**
+     * An upload between ATTACH and ATTACH_END, staged in uploads/ so it costs no heap
+     * and survives the uploader's connection dropping. {@code committed} is the number
+     * of bytes safely written; ATTACH_RESUME reports it so the client knows where to go on.
+     */
+    private static final class StagedUpload {
+        final String id;
+        final String owner;
+        final String target;    // "#general" or a username
+        final String filename;
+        final long size;
+        final File file;
+        String cid;             // client id of the ATTACH, if it had one
+        long committed = 0;
+        volatile long touched = System.currentTimeMillis();
+        volatile ClientHandler attached; // connection currently feeding it, if any
+        private OutputStream out;
+
+        StagedUpload(String id, String owner, String target, String filename, long size, File file) {
+            this.id = id;
+            this.owner = owner;
+            this.target = target;
+            this.filename = filename;
+            this.size = size;
+            this.file = file;
+        }
+
+        synchronized void append(byte[] b) throws IOException {
+            if (out == null) out = new BufferedOutputStream(new FileOutputStream(file, true));
+            out.write(b);
+            out.flush();
+            committed += b.length;
+            touched = System.currentTimeMillis();
+        }
+
+        synchronized void closeOutput() {
+            if (out == null) return;
+            try { out.close(); } catch (IOException ignored) {}
+            out = null;
+        }
+
+        void discard() {
+            closeOutput();
+            file.delete();
+        }
+    }
+
     // ---------- session ----------
+    /**
+     * Outbound side of one connection, with two lanes: interactive (chat, DMs,
+     * presence, command replies) and bulk (file transfers, SYNC and HISTORY
+     * backfill). There is no writer thread; whichever thread queues a line and finds
+     * the socket free writes everything queued, taking at most LANE_WEIGHT interactive
+     * lines per bulk line while both are waiting. A chat line therefore waits behind one FILE_DATA
+     * line at most, not the whole file. Order is kept within a lane, not across lanes.
+     *
+     * Each pass ends in one flush, and a stored (incompressible) line is flushed on
+     * its own, so with deflate on the peer can always decode what it has been sent.
+     *
+     * Threads that must never block on a socket (the keepalive wheel, the fan-out
+     * shards) use post() and postBatch() instead: they only queue, and a
+     * "session-writer" thread drains the lanes. At most one such drain is queued or
+     * running per session.
+     *
+     * The interactive lane holds at most INTERACTIVE_LANE_MAX lines. A peer that
+     * lets it grow past that is not reading; the connection is closed rather than
+     * buffering for it, and the reader side cleans up as for any dropped socket.
+     */
     private static class ClientSession {
-        final String username;
-        final PrintWriter out;
-        ClientSession(String username, PrintWriter out) { this.username = username; this.out = out; }
-        void send(String line) { out.println(line); }
+        volatile String username;
+        private final OutputStream raw;
+        private final ReentrantLock lock = new ReentrantLock();
+        private OutputStream sink;
+        private volatile Deflater deflater;
+        private volatile boolean dead;
+
+        private final ConcurrentLinkedQueue<Out> interactive = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Out> bulk = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger bulkQueued = new AtomicInteger(); // lines, not entries
+        private final AtomicInteger interactiveQueued = new AtomicInteger();
+        private final Executor writers;
+        private final Closeable conn;
+        private final AtomicBoolean handedOff = new AtomicBoolean(); // a writer drain is pending
+
+        /** A queued line or run of lines. */
+        private static final class Out {
+            final String line;
+            final List<String> lines;
+            final boolean stored;
+            final Runnable written; // run once the lines are flushed to the socket, if given
+
+            Out(String line, List<String> lines, boolean stored) { this(line, lines, stored, null); }
+
+            Out(String line, List<String> lines, boolean stored, Runnable written) {
+                this.line = line;
+                this.lines = lines;
+                this.stored = stored;
+                this.written = written;
+            }
+
+            int count() { return lines == null ? 1 : lines.size(); }
+        }
+
+        ClientSession(OutputStream raw, Executor writers, Closeable conn) {
+            this.raw = raw;
+            this.sink = raw;
+            this.writers = writers;
+            this.conn = conn;
+        }
+
+        void send(String line) { offer(interactive, new Out(line, null, false)); }
+
+        /** Sends several lines with a single flush at the end. */
+        void sendBatch(List<String> lines) { offer(interactive, new Out(null, lines, false)); }
+
+        /**
+         * Like sendBatch; {@code written} runs on the writing thread, under the session
+         * lock, once the lines are flushed. It never runs if the socket fails first.
+         */
+        void sendBatch(List<String> lines, Runnable written) { offer(interactive, new Out(null, lines, false, written)); }
+
+        /** Queues a bulk line; {@code stored} skips compression for payloads that won't shrink. */
+        void sendBulk(String line, boolean stored) {
+            bulkQueued.incrementAndGet();
+            offer(bulk, new Out(line, null, stored));
+        }
+
+        void sendBulkBatch(List<String> lines) {
+            bulkQueued.addAndGet(lines.size());
+            offer(bulk, new Out(null, lines, false));
+        }
+
+        /** Bulk lines queued but not yet written; producers back off above BULK_LANE_MAX. */
+        int bulkBacklog() { return bulkQueued.get(); }
+
+        /** Queues an interactive line and leaves the writing to a session writer; never blocks. */
+        void post(String line) { postOut(new Out(line, null, false)); }
+
+        /** Like post, for a run of lines; the fan-out shards deliver broadcasts through this. */
+        void postBatch(List<String> lines) { postOut(new Out(null, lines, false)); }
+
+        private void postOut(Out o) {
+            if (dead || !admit(o)) return;
+            interactive.add(o);
+            if (handedOff.compareAndSet(false, true)) writers.execute(this::drainHandedOff);
+        }
+
+        // counts an interactive entry in; false (and the connection closed) past the cap
+        private boolean admit(Out o) {
+            if (interactiveQueued.addAndGet(o.count()) <= INTERACTIVE_LANE_MAX) return true;
+            if (!dead) {
+                log("Dropping " + (username != null ? username : "a connection") + ": "
+                        + INTERACTIVE_LANE_MAX + " lines behind");
+                died();
+                try { conn.close(); } catch (IOException ignored) {}
+            }
+            return false;
+        }
+
+        // session writer: the flag drops first, so a line posted from here on either
+        // gets its own drain or is written by this one
+        private void drainHandedOff() {
+            handedOff.set(false);
+            drain();
+        }
+
+        private void offer(Queue<Out> lane, Out o) {
+            if (dead) return;
+            if (lane == interactive && !admit(o)) return;
+            lane.add(o);
+            drain();
+        }
+
+        // A line queued while another thread holds the lock is written by that
+        // thread, which checks the lanes again after unlocking.
+        private void drain() {
+            while (!interactive.isEmpty() || !bulk.isEmpty()) {
+                if (!lock.tryLock()) return;
+                try {
+                    writeLanes();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // caller holds the lock; writes until both lanes are empty
+        private void writeLanes() {
+            int run = 0; // interactive entries since the last bulk one
+            try {
+                while (true) {
+                    Out o;
+                    if (run >= LANE_WEIGHT && (o = pollBulk()) != null) run = 0;
+                    else if ((o = pollInteractive()) != null) run++;
+                    else if ((o = pollBulk()) != null) run = 0;
+                    else break;
+                    if (o.lines == null) write(o.line, o.stored);
+                    else for (String l : o.lines) write(l, false);
+                    if (o.written != null) {
+                        sink.flush();
+                        o.written.run();
+                    }
+                }
+                sink.flush();
+            } catch (IOException e) {
+                died();
+            }
+        }
+
+        // reader side notices the dead socket and cleans up; stop queueing meanwhile
+        private void died() {
+            dead = true;
+            interactive.clear();
+            bulk.clear();
+            bulkQueued.set(0);
+            interactiveQueued.set(0);
+        }
+
+        private Out pollInteractive() {
+            Out o = interactive.poll();
+            if (o != null) interactiveQueued.addAndGet(-o.count());
+            return o;
+        }
+
+        private Out pollBulk() {
+            Out o = bulk.poll();
+            if (o != null) bulkQueued.addAndGet(-o.count());
+            return o;
+        }
+
+        private void write(String line, boolean stored) throws IOException {
+            Deflater d = deflater;
+            if (stored && d != null) {
+                sink.flush();
+                d.setLevel(Deflater.NO_COMPRESSION);
+            }
+            sink.write(line.getBytes(StandardCharsets.UTF_8));
+            sink.write('\n');
+            if (stored && d != null) {
+                sink.flush();
+                d.setLevel(Deflater.DEFAULT_COMPRESSION);
+            }
+        }
+
+        boolean compressed() { return deflater != null; }
+
+        /**
+         * Everything queued so far still goes out uncompressed, then {@code ok} as the
+         * last raw line. The switch happens under the lock right after it, so a line
+         * another thread queues meanwhile waits and goes out compressed.
+         */
+        void startDeflate(String ok) {
+            lock.lock();
+            try {
+                writeLanes();
+                if (dead) return;
+                write(ok, false);
+                sink.flush();
+                Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                sink = new DeflaterOutputStream(raw, d, 8192, true);
+                deflater = d;
+            } catch (IOException e) {
+                died();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+    }
+
+    // ---------- inbound line framing ----------
+    /**
+     * Byte-at-a-time line reader over a buffered stream. Unlike BufferedReader it never
+     * reads past the current line, so the stream can switch to inflate right after the
+     * COMPRESS line. Lines longer than {@code max} are cut short (and rejected by the
+     * caller) instead of growing the buffer without bound.
+     */
+    private static final class LineReader {
+        private final InputStream in;
+        private final int max;
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        private boolean tooLong;
+
+        LineReader(InputStream in, int max) { this.in = in; this.max = max; }
+
+        String readLine() throws IOException {
+            buf.reset();
+            tooLong = false;
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (buf.size() < max) buf.write(b);
+                else tooLong = true;
+            }
+            if (b == -1 && buf.size() == 0) return null;
+            String line = buf.toString(StandardCharsets.UTF_8);
+            return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        }
+
+        /** True if the last line exceeded the limit and was cut short. */
+        boolean tooLong() { return tooLong; }
+
+        LineReader inflate() {
+            return new LineReader(new BufferedInputStream(new InflaterInputStream(in, new Inflater(true))), max);
+        }
     }
 
     // ---------- entry point ----------
     public static void main(String[] args) throws Exception {
-        int port = 5050;
-        if (args.length > 0) port = Integer.parseInt(args[0]);
-        ChatServer s = new ChatServer(port);
+        int port = 5050, nodeId = 0, busPort = 0;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--node":  nodeId  = Integer.parseInt(args[++i]); break;
+                case "--bus":   busPort = Integer.parseInt(args[++i]); break;
+                case "--peers":
+                    for (String hp : args[++i].split(",")) {
+                        int c = hp.lastIndexOf(':');
+                        peers.add(new InetSocketAddress(hp.substring(0, c), Integer.parseInt(hp.substring(c + 1))));
+                    }
+                    break;
+                default: port = Integer.parseInt(args[i]);
+            }
+        }
+        ChatServer s = new ChatServer(port, nodeId, busPort, peers);
         s.loadUsers();
-        System.out.println("[SERVER] users.db: " + new File("users.db").getAbsolutePath());
+        log("users.db: " + new File("users.db").getAbsolutePath());
         s.start();
     }
 }
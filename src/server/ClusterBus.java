@@ -0,0 +1,325 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Inter-node bus that lets several ChatServer processes act as one chat.
+ *
+ * Every node keeps its own client connections. Nodes talk to each other over
+ * plain TCP, one line per frame, and share just enough to look like a single
+ * server: who is online where, #general traffic (sent once per node, not once
+ * per user) and DMs/file lines routed to the node holding the recipient.
+ *
+ * Frames (node -> node):
+ *   HELLO <nodeId>
+ *   ROSTER <u1,u2,...>        full list of the sender's local users
+ *   JOIN <user>
+ *   LEAVE <user>
+ *   MSG <from> <text>         #general message; receiver delivers to its sessions
+ *   DM <from> <to> <text>     DM for a user on the receiving node
+ *   GLINE <line>              raw server->client line for every local session
+ *   LINE <user> <line>        raw server->client line for one local user
+ *
+ * Links are full mesh. Each node dials the peers it was given; when two nodes
+ * dial each other the link dialed by the lower node id wins, so both ends
+ * always agree which socket to keep.
+ *
+ * Sending never touches the socket: frames go into the link's bounded outbox and
+ * the link's own writer thread sends them, so a slow or partitioned peer can't
+ * stall the sequencer or a client handler. A link that falls LINK_BACKLOG frames
+ * behind is closed; the dialing side reconnects and the ROSTER resyncs presence.
+ */
+class ClusterBus {
+
+    /** Callbacks into the owning server for traffic that arrives from other nodes. */
+    interface Handler {
+        void onGeneral(String from, String text);
+        void onDm(String from, String to, String text);
+        void onGeneralLine(String line);
+        void onLine(String user, String line);
+        void onPresence(String user, boolean online);
+    }
+
+    private static final long DIAL_EVERY_MS = 2000;
+    private static final int  MAX_FRAME     = 16384;
+    private static final int  LINK_BACKLOG  = Integer.getInteger("chat.busBacklog", 1 << 16); // frames per link
+
+    private final int nodeId;
+    private final int busPort;
+    private final List<InetSocketAddress> seeds;
+    private final Handler handler;
+    private final Collection<String> localUsers;
+
+    // nodeId -> live link
+    private final Map<Integer, Link> links = new ConcurrentHashMap<>();
+    // seed address -> node id learned from its HELLO (so we don't redial a node we already reach)
+    private final Map<InetSocketAddress, Integer> seedNodes = new ConcurrentHashMap<>();
+    // remote username -> node id holding the session
+    private final Map<String, Integer> remoteUsers = new ConcurrentHashMap<>();
+
+    ClusterBus(int nodeId, int busPort, List<InetSocketAddress> seeds,
+               Collection<String> localUsers, Handler handler) {
+        this.nodeId = nodeId;
+        this.busPort = busPort;
+        this.seeds = seeds;
+        this.localUsers = localUsers;
+        this.handler = handler;
+    }
+
+    boolean enabled() { return busPort > 0; }
+
+    int nodeId() { return nodeId; }
+
+    // ---------- lifecycle ----------
+    void start() throws IOException {
+        if (!enabled()) return;
+        ServerSocket ss = new ServerSocket(busPort);
+        log("Node " + nodeId + " bus listening on port " + busPort);
+
+        Thread acceptor = new Thread(() -> {
+            while (!ss.isClosed()) {
+                try {
+                    Socket s = ss.accept();
+                    s.setTcpNoDelay(true);
+                    startLink(new Link(s, false, null));
+                } catch (IOException e) { log("Bus accept failed: " + e); }
+            }
+        }, "bus-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        if (!seeds.isEmpty()) {
+            Thread dialer = new Thread(this::dialLoop, "bus-dial");
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+    }
+
+    private void dialLoop() {
+        while (true) {
+            for (InetSocketAddress a : seeds) {
+                Integer known = seedNodes.get(a);
+                if (known != null && links.containsKey(known)) continue;
+                try {
+                    Socket s = new Socket();
+                    s.connect(a, 2000);
+                    s.setTcpNoDelay(true);
+                    startLink(new Link(s, true, a));
+                } catch (IOException ignored) {
+                    // peer not up yet; try again next round
+                }
+            }
+            try { Thread.sleep(DIAL_EVERY_MS); } catch (InterruptedException e) { return; }
+        }
+    }
+
+    private void startLink(Link l) throws IOException {
+        l.open();
+        l.writer = new Thread(l::writeLoop, "bus-link-out");
+        l.writer.setDaemon(true);
+        l.writer.start();
+        l.send("HELLO " + nodeId);
+        Thread t = new Thread(l, "bus-link");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ---------- presence ----------
+    boolean isRemote(String user) { return remoteUsers.containsKey(user); }
+
+    void userJoined(String user) { sendAll("JOIN " + user); }
+
+    void userLeft(String user) { sendAll("LEAVE " + user); }
+
+    // ---------- traffic ----------
+    void publishGeneral(String from, String text) { sendAll("MSG " + from + " " + text); }
+
+    void publishGeneralLine(String line) { sendAll("GLINE " + line); }
+
+    /** Routes a DM to the node holding {@code to}. Returns false if nobody has them. */
+    boolean routeDm(String from, String to, String text) {
+        Link l = linkFor(to);
+        if (l == null) return false;
+        l.send("DM " + from + " " + to + " " + text);
+        return true;
+    }
+
+    /** Routes a raw server->client line to the node holding {@code user}. */
+    boolean routeLine(String user, String line) {
+        Link l = linkFor(user);
+        if (l == null) return false;
+        l.send("LINE " + user + " " + line);
+        return true;
+    }
+
+    private Link linkFor(String user) {
+        Integer n = remoteUsers.get(user);
+        return (n == null) ? null : links.get(n);
+    }
+
+    private void sendAll(String frame) {
+        for (Link l : links.values()) l.send(frame);
+    }
+
+    // ---------- link bookkeeping ----------
+    private boolean preferred(Link l) {
+        return l.outbound ? nodeId < l.peer : l.peer < nodeId;
+    }
+
+    private boolean register(Link l) {
+        if (l.peer == nodeId) { log("Ignoring link to self"); return false; }
+        synchronized (links) {
+            Link cur = links.get(l.peer);
+            if (cur != null && cur.isOpen()) {
+                if (!preferred(l) || preferred(cur)) return false;
+                cur.close();
+            }
+            links.put(l.peer, l);
+        }
+        if (l.seed != null) seedNodes.put(l.seed, l.peer);
+        l.send("ROSTER " + String.join(",", localUsers));
+        log("Linked to node " + l.peer);
+        return true;
+    }
+
+    private void unregister(Link l) {
+        synchronized (links) {
+            if (links.get(l.peer) != l) return;
+            links.remove(l.peer);
+        }
+        dropUsersOf(l.peer, Set.of());
+        log("Lost node " + l.peer);
+    }
+
+    // forget users held by a node, except those in keep
+    private void dropUsersOf(int node, Set<String> keep) {
+        for (Iterator<Map.Entry<String, Integer>> it = remoteUsers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Integer> e = it.next();
+            if (e.getValue() == node && !keep.contains(e.getKey())) {
+                it.remove();
+                handler.onPresence(e.getKey(), false);
+            }
+        }
+    }
+
+    private void onFrame(Link l, String frame) {
+        String[] p = frame.split(" ", 2);
+        String arg = (p.length > 1) ? p[1] : "";
+        switch (p[0]) {
+            case "ROSTER": {
+                Set<String> roster = new HashSet<>();
+                for (String u : arg.split(",")) if (!u.isBlank()) roster.add(u);
+                dropUsersOf(l.peer, roster);
+                for (String u : roster) {
+                    if (remoteUsers.put(u, l.peer) == null) handler.onPresence(u, true);
+                }
+                break;
+            }
+            case "JOIN": {
+                if (remoteUsers.put(arg, l.peer) == null) handler.onPresence(arg, true);
+                break;
+            }
+            case "LEAVE": {
+                if (remoteUsers.remove(arg, l.peer)) handler.onPresence(arg, false);
+                break;
+            }
+            case "MSG": {
+                String[] m = arg.split(" ", 2);
+                if (m.length == 2) handler.onGeneral(m[0], m[1]);
+                break;
+            }
+            case "DM": {
+                String[] m = arg.split(" ", 3);
+                if (m.length == 3) handler.onDm(m[0], m[1], m[2]);
+                break;
+            }
+            case "GLINE": handler.onGeneralLine(arg); break;
+            case "LINE": {
+                String[] m = arg.split(" ", 2);
+                if (m.length == 2) handler.onLine(m[0], m[1]);
+                break;
+            }
+            default: log("Unknown bus frame from node " + l.peer + ": " + p[0]);
+        }
+    }
+
+    private static void log(String s) { Log.info("BUS", s); }
+
+    // ---------- one TCP link to another node ----------
+    private class Link implements Runnable {
+        private final Socket socket;
+        final boolean outbound;
+        final InetSocketAddress seed;
+        volatile int peer = -1;
+        private BufferedReader in;
+        private Writer out;
+        private final BlockingQueue<String> outbox = new ArrayBlockingQueue<>(LINK_BACKLOG);
+        Thread writer;
+
+        Link(Socket socket, boolean outbound, InetSocketAddress seed) {
+            this.socket = socket;
+            this.outbound = outbound;
+            this.seed = seed;
+        }
+
+        void open() throws IOException {
+            in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 8192);
+        }
+
+        boolean isOpen() { return !socket.isClosed(); }
+
+        /** Queues a frame for the writer thread; never blocks. */
+        void send(String frame) {
+            if (outbox.offer(frame)) return;
+            if (isOpen()) log("Node " + peer + " is " + LINK_BACKLOG + " frames behind; dropping the link");
+            close();
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+            if (writer != null) writer.interrupt();
+        }
+
+        // writer thread: whatever has queued up goes out with one flush
+        void writeLoop() {
+            try {
+                while (true) {
+                    String f = outbox.take();
+                    do {
+                        out.write(f);
+                        out.write('\n');
+                    } while ((f = outbox.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        @Override public void run() {
+            boolean registered = false;
+            try (socket) {
+                String hello = in.readLine();
+                if (hello == null || !hello.startsWith("HELLO ")) return;
+                peer = Integer.parseInt(hello.substring(6).trim());
+                if (!register(this)) return;
+                registered = true;
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() > MAX_FRAME) continue;
+                    onFrame(this, line);
+                }
+            } catch (IOException | NumberFormatException ignored) {
+            } finally {
+                close();
+                if (registered) unregister(this);
+            }
+        }
+    }
+}
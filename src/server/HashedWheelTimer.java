@@ -0,0 +1,117 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed-wheel timer: one thread, a ring of buckets, O(1) schedule and cancel.
+ *
+ * Meant for lots of coarse, mostly-cancelled or rescheduled timeouts (one per
+ * connection for keepalives), where a ScheduledExecutorService would keep a heap
+ * of 100k entries. Expiry is accurate to one tick.
+ *
+ * schedule() and cancel() may be called from any thread. New timeouts go through
+ * a lock-free queue and are moved into their bucket by the worker on the next
+ * tick, so the buckets themselves are only ever touched by the worker.
+ */
+final class HashedWheelTimer {
+
+    /** Handle for a scheduled task. */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // in ticks since start
+        private long rounds;
+        private volatile boolean cancelled;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** Cancels the task; the slot is reclaimed when the wheel next passes it. */
+        void cancel() { cancelled = true; }
+    }
+
+    private static final class Bucket {
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            if (head == null) head = tail = t;
+            else { tail.next = t; t.prev = tail; tail = t; }
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) t.prev.next = t.next; else head = t.next;
+            if (t.next != null) t.next.prev = t.prev; else tail = t.prev;
+            t.prev = t.next = null;
+        }
+    }
+
+    private final long tickMs;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private volatile long tick = 0;
+
+    HashedWheelTimer(String name, long tickMs, int buckets) {
+        if (Integer.bitCount(buckets) != 1) throw new IllegalArgumentException("buckets must be a power of two");
+        this.tickMs = tickMs;
+        this.wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) wheel[i] = new Bucket();
+        this.mask = buckets - 1;
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Runs {@code task} on the timer thread after about {@code delayMs}. Keep tasks short. */
+    Timeout schedule(Runnable task, long delayMs) {
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        Timeout t = new Timeout(task, tick + ticks);
+        incoming.add(t);
+        return t;
+    }
+
+    private void run() {
+        while (true) {
+            long next = startNanos + (tick + 1) * tickMs * 1_000_000L;
+            long sleep = (next - System.nanoTime()) / 1_000_000L;
+            if (sleep > 0) {
+                try { Thread.sleep(sleep); } catch (InterruptedException e) { return; }
+            }
+            tick++;
+            transferIncoming();
+            expire(wheel[(int) (tick & mask)]);
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout t;
+        while ((t = incoming.poll()) != null) {
+            if (t.cancelled) continue;
+            long due = Math.max(t.deadline, tick); // already late: fire on this tick
+            t.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(t);
+        }
+    }
+
+    private void expire(Bucket b) {
+        Timeout t = b.head;
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.cancelled) {
+                b.remove(t);
+            } else if (t.rounds <= 0) {
+                b.remove(t);
+                try { t.task.run(); } catch (RuntimeException e) {
+                    Log.warn("TIMER", "task failed: " + e);
+                }
+            } else {
+                t.rounds--;
+            }
+            t = next;
+        }
+    }
+}
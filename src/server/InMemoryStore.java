@@ -0,0 +1,69 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+/**
+ * {@link MessageStore} that keeps everything on the heap and forgets it on exit.
+ * For tests and throwaway runs (-Dchat.store=memory); nothing here is bounded
+ * except by {@link #retain}.
+ */
+final class InMemoryStore implements MessageStore {
+
+    private static final class Channel {
+        final ArrayList<String> lines = new ArrayList<>();
+        final ArrayList<Long> millis = new ArrayList<>();
+        long firstSeq = 1; // seq of lines.get(0)
+
+        long head() { return firstSeq + lines.size() - 1; }
+    }
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    private Channel channel(String name) { return channels.computeIfAbsent(name, n -> new Channel()); }
+
+    @Override public String append(String channel, LongFunction<String> format) {
+        Channel c = channel(channel);
+        synchronized (c) {
+            String line = format.apply(c.head() + 1);
+            c.lines.add(line);
+            c.millis.add(System.currentTimeMillis());
+            return line;
+        }
+    }
+
+    @Override public long head(String channel) {
+        Channel c = channel(channel);
+        synchronized (c) { return c.head(); }
+    }
+
+    @Override public List<String> read(String channel, long afterSeq, int max) {
+        Channel c = channel(channel);
+        synchronized (c) {
+            long off = afterSeq + 1 - c.firstSeq; // in long: a huge cursor must not wrap to 0
+            if (off >= c.lines.size() || max <= 0) return List.of();
+            int from = (int) Math.max(0, off);
+            int to = (int) Math.min(c.lines.size(), (long) from + max);
+            return new ArrayList<>(c.lines.subList(from, to));
+        }
+    }
+
+    @Override public long retain(long maxAgeMs) {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        long dropped = 0;
+        for (Channel c : channels.values()) {
+            synchronized (c) {
+                int n = 0;
+                while (n < c.millis.size() && c.millis.get(n) < cutoff) n++;
+                c.lines.subList(0, n).clear();
+                c.millis.subList(0, n).clear();
+                c.firstSeq += n;
+                dropped += n;
+            }
+        }
+        return dropped;
+    }
+
+    @Override public void close() { }
+}
@@ -0,0 +1,162 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Server log that never blocks the thread that logs.
+ *
+ * Events go into a pre-allocated ring of slots. A producer claims a slot with one
+ * CAS on the claim counter, fills it in and publishes it by writing the slot's
+ * sequence; if the ring is full the event is dropped and counted instead. One
+ * background thread drains published slots in order, formats them as
+ *   2026-01-31T12:00:00.123 INFO  SERVER  <message>
+ * and writes each batch with a single write+flush to logs/server.log (rotated at
+ * chat.logBytes, keeping chat.logFiles old files) and, unless -Dchat.logConsole=false,
+ * to stdout. A slow terminal or disk only ever stalls that thread.
+ */
+final class Log {
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(1024, Integer.getInteger("chat.logRing", 1 << 14)));
+    private static final long MAX_BYTES = Long.getLong("chat.logBytes", 10L << 20);
+    private static final int KEEP_FILES = Integer.getInteger("chat.logFiles", 5);
+    private static final boolean CONSOLE = !"false".equals(System.getProperty("chat.logConsole"));
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final class Slot {
+        volatile long published = -1; // seq of the event in this slot, once it is complete
+        long millis;
+        String level;
+        String tag;
+        String message;
+    }
+
+    private static final Slot[] ring = new Slot[CAPACITY];
+    private static final int mask = CAPACITY - 1;
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed = 0; // every seq below this has been drained
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static volatile File dir;   // null until init(): console only
+    private static OutputStream file;   // drain thread only
+    private static long fileBytes;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) ring[i] = new Slot();
+        Thread t = new Thread(Log::drain, "log-writer");
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flushNow, "log-flush"));
+    }
+
+    private Log() { }
+
+    /** Starts writing to {@code dir}/server.log as well. */
+    static void init(File dir) { Log.dir = dir; }
+
+    static void info(String tag, String message) { publish("INFO", tag, message); }
+
+    static void warn(String tag, String message) { publish("WARN", tag, message); }
+
+    /** Events lost because the ring was full. */
+    static long dropped() { return dropped.get(); }
+
+    private static void publish(String level, String tag, String message) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        Slot s = ring[(int) (seq & mask)];
+        s.millis = System.currentTimeMillis();
+        s.level = level;
+        s.tag = tag;
+        s.message = message;
+        s.published = seq; // volatile write: the fields above are visible to the drainer
+    }
+
+    // ---------- drain thread ----------
+    private static long reportedDrops = 0;
+
+    private static void drain() {
+        StringBuilder batch = new StringBuilder(8192);
+        while (true) {
+            if (!drainOnce(batch)) LockSupport.parkNanos(2_000_000);
+        }
+    }
+
+    private static synchronized void flushNow() { drainOnce(new StringBuilder()); }
+
+    // formats everything published so far into one write; false if there was nothing
+    private static synchronized boolean drainOnce(StringBuilder batch) {
+        long next = consumed;
+        batch.setLength(0);
+        Slot s;
+        while ((s = ring[(int) (next & mask)]).published == next) {
+            format(batch, s.millis, s.level, s.tag, s.message);
+            s.level = s.tag = s.message = null;
+            next++;
+            if (batch.length() > 64 * 1024) break;
+        }
+        long d = dropped.get();
+        if (d != reportedDrops) {
+            format(batch, System.currentTimeMillis(), "WARN", "LOG", (d - reportedDrops) + " log events dropped (ring full)");
+            reportedDrops = d;
+        }
+        if (batch.length() == 0) return false;
+        consumed = next;
+        write(batch.toString().getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private static void format(StringBuilder b, long millis, String level, String tag, String message) {
+        TIME.formatTo(Instant.ofEpochMilli(millis), b);
+        b.append(' ').append(level).append(level.length() < 5 ? "  " : " ")
+         .append(tag).append("  ").append(message).append('\n');
+    }
+
+    private static void write(byte[] bytes) {
+        if (CONSOLE) {
+            System.out.write(bytes, 0, bytes.length);
+            System.out.flush();
+        }
+        File d = dir;
+        if (d == null) return;
+        try {
+            if (file == null) open(d);
+            file.write(bytes);
+            file.flush();
+            fileBytes += bytes.length;
+            if (fileBytes >= MAX_BYTES) rotate(d);
+        } catch (IOException e) {
+            System.err.println("log file failed: " + e);
+            file = null; // try to reopen with the next batch
+        }
+    }
+
+    private static void open(File d) throws IOException {
+        if (!d.isDirectory() && !d.mkdirs()) throw new IOException("cannot create " + d);
+        File f = new File(d, "server.log");
+        fileBytes = f.length();
+        file = new BufferedOutputStream(new FileOutputStream(f, true), 64 * 1024);
+    }
+
+    // server.log -> server.log.1 -> ... -> server.log.<KEEP_FILES> (dropped)
+    private static void rotate(File d) throws IOException {
+        file.close();
+        file = null;
+        new File(d, "server.log." + KEEP_FILES).delete();
+        for (int i = KEEP_FILES - 1; i >= 1; i--) {
+            new File(d, "server.log." + i).renameTo(new File(d, "server.log." + (i + 1)));
+        }
+        new File(d, "server.log").renameTo(new File(d, "server.log.1"));
+    }
+}
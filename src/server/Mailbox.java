@@ -0,0 +1,133 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Store-and-forward queues for users who are offline when a DM or file is sent.
+ *
+ * Each user has an append-only queue file {@code <user>.q} of ready-to-send server
+ * lines and a cursor file {@code <user>.ack} with how many bytes of the queue were
+ * delivered. {@link #take} returns what lies past the cursor and {@link #ack} moves
+ * it once those lines went out, so a login that dies half-way gets the rest next
+ * time and nothing is delivered twice. A fully delivered queue is deleted.
+ *
+ * File bodies wait in {@code files/<user>/<key>.bin} and count against the same
+ * per-user limit as the queued lines.
+ *
+ * Callers hold {@link #lock} for a user around "is the user online? then deliver,
+ * else offer" and around "take, send, go online", so a message can't slip in
+ * between draining the queue and the user showing up in the client map.
+ */
+final class Mailbox {
+
+    /** Undelivered lines of one mailbox and the cursor to ack once they are sent. */
+    static final class Batch {
+        final List<String> lines;
+        final long end;
+
+        Batch(List<String> lines, long end) {
+            this.lines = lines;
+            this.end = end;
+        }
+    }
+
+    private final File dir;
+    private final File filesDir;
+    private final long maxBytes;
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    Mailbox(File dir, long maxBytes) {
+        this.dir = dir;
+        this.filesDir = new File(dir, "files");
+        this.maxBytes = maxBytes;
+        filesDir.mkdirs();
+    }
+
+    Object lock(String user) { return locks.computeIfAbsent(user, u -> new Object()); }
+
+    /** True if {@code bytes} more still fit under the user's limit. */
+    boolean hasRoom(String user, long bytes) {
+        return used(user) + bytes <= maxBytes;
+    }
+
+    boolean isEmpty(String user) { return pending(user) == 0; }
+
+    /** Appends one line; false if the mailbox is full. */
+    boolean offer(String user, String line) throws IOException {
+        byte[] b = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        if (!hasRoom(user, b.length)) return false;
+        try (OutputStream out = new FileOutputStream(queue(user), true)) {
+            out.write(b);
+        }
+        return true;
+    }
+
+    /** Where a queued file body with this key is kept until delivery. */
+    File fileFor(String user, String key) {
+        File d = new File(filesDir, user);
+        d.mkdirs();
+        return new File(d, key + ".bin");
+    }
+
+    /** Everything not yet delivered, oldest first. */
+    Batch take(String user) throws IOException {
+        File q = queue(user);
+        long from = cursor(user);
+        List<String> lines = new ArrayList<>();
+        if (!q.exists() || q.length() <= from) return new Batch(lines, from);
+        long end;
+        try (RandomAccessFile raf = new RandomAccessFile(q, "r")) {
+            end = raf.length();
+            byte[] b = new byte[(int) (end - from)];
+            raf.seek(from);
+            raf.readFully(b);
+            for (String l : new String(b, StandardCharsets.UTF_8).split("\n")) {
+                if (!l.isEmpty()) lines.add(l);
+            }
+        }
+        return new Batch(lines, end);
+    }
+
+    /** Marks everything up to {@code end} delivered; drops the queue once it is all read. */
+    void ack(String user, long end) throws IOException {
+        File q = queue(user);
+        if (end >= q.length()) {
+            q.delete();
+            ackFile(user).delete();
+            return;
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(ackFile(user)), StandardCharsets.UTF_8)) {
+            w.write(Long.toString(end));
+        }
+    }
+
+    // queued-but-undelivered bytes plus waiting file bodies
+    private long used(String user) {
+        long sum = pending(user);
+        File[] files = new File(filesDir, user).listFiles();
+        if (files != null) for (File f : files) sum += f.length();
+        return sum;
+    }
+
+    private long pending(String user) {
+        File q = queue(user);
+        return q.exists() ? Math.max(0, q.length() - cursor(user)) : 0;
+    }
+
+    private long cursor(String user) {
+        File a = ackFile(user);
+        if (!a.exists()) return 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(a), StandardCharsets.UTF_8))) {
+            return Long.parseLong(r.readLine().trim());
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private File queue(String user) { return new File(dir, user + ".q"); }
+
+    private File ackFile(String user) { return new File(dir, user + ".ack"); }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Where MSG and DM lines are kept.
+ *
+ * Channels are named "#general" or "@alice+bob" for a DM pair (names sorted, see
+ * {@link #dmChannel}). Each channel numbers its lines 1, 2, 3, ... with no gaps;
+ * the seq is also the message id clients see, and the stored line is the exact
+ * server->client line carrying it, so catch-up and history just replay lines.
+ *
+ * Implementations must be safe for concurrent use. Appends to one channel are
+ * totally ordered; a read never returns a line whose append hasn't returned.
+ *
+ * Shipped backends: {@link SegmentedFileStore} (durable, the default) and
+ * {@link InMemoryStore} (-Dchat.store=memory, for tests and throwaway runs).
+ */
+interface MessageStore extends Closeable {
+
+    /** Assigns the next seq of {@code channel}, formats the line with it, stores it and returns the line. */
+    String append(String channel, LongFunction<String> format);
+
+    /** Highest seq handed out in {@code channel}; 0 if nothing was ever appended. */
+    long head(String channel);
+
+    /** Lines with seq > {@code afterSeq}, oldest first, at most {@code max}. */
+    List<String> read(String channel, long afterSeq, int max);
+
+    /** Lines with seq < {@code beforeSeq}, oldest first: the {@code max} newest of them. */
+    default List<String> readBefore(String channel, long beforeSeq, int max) {
+        long last = Math.min(beforeSeq - 1, head(channel));
+        if (last <= 0 || max <= 0) return List.of();
+        long after = Math.max(0, last - max);
+        return read(channel, after, (int) (last - after));
+    }
+
+    /** The conversation between {@code a} and {@code b}, as {@link #read}. */
+    default List<String> readDm(String a, String b, long afterSeq, int max) {
+        return read(dmChannel(a, b), afterSeq, max);
+    }
+
+    /**
+     * Drops lines older than {@code maxAgeMs}; seqs are not reused and head() is kept.
+     * Backends may keep some older lines (whole segments go at once). Returns how many
+     * lines were dropped.
+     */
+    long retain(long maxAgeMs);
+
+    @Override void close();
+
+    static String dmChannel(String a, String b) {
+        return (a.compareTo(b) <= 0) ? "@" + a + "+" + b : "@" + b + "+" + a;
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import java.util.*;
+
+/**
+ * Versioned view of who is online (local and remote users alike).
+ *
+ * Every join/leave bumps the version and is kept in a bounded change log, so a
+ * client that already knows version v can be sent just the net changes since v
+ * instead of the full list. The full list is built at most once per version.
+ *
+ * Versions are written as tokens "<epoch>:<n>". The epoch changes on every
+ * server start, so a token from an older run (or another node) never matches
+ * and always falls back to a snapshot.
+ *
+ * Delta ops are final-state assertions ("+bob" = bob is online at the target
+ * version), so a delta from a to b may be applied to any state between a and b.
+ */
+final class Presence {
+    private static final int MAX_CHANGES = 4096;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final TreeSet<String> online = new TreeSet<>();
+    private long version = 0;
+
+    // ring of the last MAX_CHANGES changes; change for version v sits at (v - 1) % MAX_CHANGES
+    private final String[] changes = new String[MAX_CHANGES];
+
+    private String snapshotCsv = "";
+    private long snapshotVersion = 0;
+
+    synchronized void set(String user, boolean isOnline) {
+        boolean changed = isOnline ? online.add(user) : online.remove(user);
+        if (!changed) return;
+        version++;
+        changes[(int) ((version - 1) % MAX_CHANGES)] = (isOnline ? "+" : "-") + user;
+    }
+
+    synchronized String token() { return token(version); }
+
+    private String token(long v) { return epoch + ":" + v; }
+
+    /** Comma separated list of online users, rebuilt only when the version moved. */
+    synchronized String csv() {
+        if (snapshotVersion != version) {
+            snapshotCsv = String.join(",", online);
+            snapshotVersion = version;
+        }
+        return snapshotCsv;
+    }
+
+    synchronized int size() { return online.size(); }
+
+    /** "PRESENCE_SNAPSHOT <token> <csv>" for the current version. */
+    synchronized String snapshotLine() {
+        return "PRESENCE_SNAPSHOT " + token() + " " + csv();
+    }
+
+    /**
+     * Answer for a client that knows {@code known}: a delta line if the change log
+     * still covers it, otherwise a snapshot line.
+     */
+    synchronized String catchUp(String known) {
+        long from = parse(known);
+        if (from < 0 || from > version || version - from > MAX_CHANGES) return snapshotLine();
+        return deltaLine(from);
+    }
+
+    /**
+     * Net changes from {@code from} to the current version, or null if there are none.
+     * If more changes happened since than the log holds, a snapshot line instead.
+     */
+    synchronized String deltaSince(long from) {
+        if (from >= version) return null;
+        return (version - from > MAX_CHANGES) ? snapshotLine() : deltaLine(from);
+    }
+
+    synchronized long version() { return version; }
+
+    private String deltaLine(long from) {
+        // keep first and last op per user; a user that flipped back to where it started cancels out
+        Map<String, String[]> net = new LinkedHashMap<>();
+        for (long v = from + 1; v <= version; v++) {
+            String op = changes[(int) ((v - 1) % MAX_CHANGES)];
+            String user = op.substring(1);
+            String[] fl = net.get(user);
+            if (fl == null) net.put(user, new String[]{op, op});
+            else fl[1] = op;
+        }
+        StringBuilder sb = new StringBuilder("PRESENCE ").append(token(from)).append(' ').append(token());
+        for (Map.Entry<String, String[]> e : net.entrySet()) {
+            String first = e.getValue()[0], last = e.getValue()[1];
+            if (first.charAt(0) != last.charAt(0)) continue;
+            sb.append(' ').append(last);
+        }
+        return sb.toString();
+    }
+
+    private long parse(String tok) {
+        int c = tok.indexOf(':');
+        if (c < 0 || !tok.substring(0, c).equals(epoch)) return -1;
+        try { return Long.parseLong(tok.substring(c + 1)); }
+        catch (NumberFormatException e) { return -1; }
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Remembers which client message ids each user sent recently and the server id
+ * each one got, so a retried MSG/DM/ATTACH can be answered instead of posted again.
+ *
+ * Entries are a 64-bit hash of (user, client id) and the server id, kept in two
+ * fixed-size open-addressing tables of longs: the current generation and the one
+ * before it. The current table is retired when it is half full or older than the
+ * window, and the old one is dropped, so memory stays at 2 x capacity x 16 bytes
+ * however many sends go by. An id is remembered for at least one window as long
+ * as fewer than capacity/2 tagged sends arrive in that window.
+ */
+final class RecentIds {
+    private static final long EMPTY = 0;
+
+    private final int mask;
+    private final int limit;
+    private final long windowMs;
+
+    private long[] keys, vals;        // current generation
+    private long[] oldKeys, oldVals;  // previous generation
+    private int size;
+    private long started = System.currentTimeMillis();
+
+    RecentIds(int capacity, long windowMs) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.mask = capacity - 1;
+        this.limit = capacity / 2;
+        this.windowMs = windowMs;
+        this.keys = new long[capacity];
+        this.vals = new long[capacity];
+        this.oldKeys = new long[capacity];
+        this.oldVals = new long[capacity];
+    }
+
+    /** Server id recorded for this client id, or -1 if it wasn't seen within the window. */
+    synchronized long get(String user, String clientId) {
+        long k = hash(user, clientId);
+        int i = find(keys, k);
+        if (keys[i] == k) return vals[i];
+        i = find(oldKeys, k);
+        return (oldKeys[i] == k) ? oldVals[i] : -1;
+    }
+
+    synchronized void put(String user, String clientId, long serverId) {
+        long now = System.currentTimeMillis();
+        if (size >= limit || now - started >= windowMs) rotate(now);
+        long k = hash(user, clientId);
+        int i = find(keys, k);
+        if (keys[i] != k) {
+            keys[i] = k;
+            size++;
+        }
+        vals[i] = serverId;
+    }
+
+    // linear probe for k or the empty slot where it would go; tables never fill up past half
+    private int find(long[] table, long k) {
+        int i = (int) k & mask;
+        while (table[i] != EMPTY && table[i] != k) i = (i + 1) & mask;
+        return i;
+    }
+
+    private void rotate(long now) {
+        long[] k = oldKeys, v = oldVals;
+        oldKeys = keys;
+        oldVals = vals;
+        Arrays.fill(k, EMPTY);
+        keys = k;
+        vals = v;
+        size = 0;
+        started = now;
+    }
+
+    // FNV-1a over "user\0clientId", then a splitmix finalizer so the low bits index well
+    private static long hash(String user, String clientId) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : (user + '\0' + clientId).getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (h == EMPTY) ? 1 : h;
+    }
+}
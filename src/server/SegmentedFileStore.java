@@ -0,0 +1,269 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+/**
+ * Durable {@link MessageStore}: one directory per channel ("general", "dm_alice+bob")
+ * holding append-only segment files named after the first seq they contain.
+ *
+ * Each record is "seq TAB millis TAB line". The active segment is rolled once it
+ * passes segmentBytes, so retention can drop whole old segments without rewriting
+ * anything. On open every segment is scanned once to recover the last seq and to
+ * build a sparse seq -> byte offset index, which keeps reads from scanning whole
+ * files.
+ *
+ * A channel's active segment is opened on its first append. Only the
+ * OPEN_APPENDERS channels that appended most recently keep it open
+ * (-Dchat.openSegments); the rest close it and reopen on their next append, so
+ * every DM pair ever used does not hold a file descriptor. retain() trims channels
+ * nobody has touched on disk, without loading them into the cache.
+ */
+final class SegmentedFileStore implements MessageStore {
+    private static final int INDEX_EVERY = 128;
+    private static final int OPEN_APPENDERS = Math.max(1, Integer.getInteger("chat.openSegments", 256));
+
+    private final File root;
+    private final long segmentBytes;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    // channels with an open segment, least recently appended first (guarded by itself)
+    private final LinkedHashMap<Channel, Boolean> appenders = new LinkedHashMap<>(64, 0.75f, true);
+
+    SegmentedFileStore(File root, long segmentBytes) {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+    }
+
+    @Override public String append(String channel, LongFunction<String> format) {
+        Channel c = channel(channel);
+        String line = c.append(format);
+        appended(c);
+        return line;
+    }
+
+    @Override public long head(String channel) { return channel(channel).head(); }
+
+    @Override public List<String> read(String channel, long afterSeq, int max) {
+        return channel(channel).read(afterSeq, max);
+    }
+
+    @Override public long retain(long maxAgeMs) {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        File[] dirs = root.listFiles(f -> f.isDirectory() && (f.getName().equals("general") || f.getName().startsWith("dm_")));
+        long dropped = 0;
+        if (dirs != null) {
+            for (File d : dirs) {
+                String name = d.getName().equals("general") ? "#general" : "@" + d.getName().substring(3);
+                Channel c = channels.get(name);
+                if (c != null) {
+                    dropped += c.retain(cutoff);
+                    continue;
+                }
+                // not loaded: trim it where it lies; compute keeps channel() from loading it meanwhile
+                long[] n = new long[1];
+                channels.compute(name, (k, cur) -> {
+                    if (cur != null) {
+                        n[0] = cur.retain(cutoff);
+                        return cur;
+                    }
+                    try {
+                        n[0] = new Channel(d).retain(cutoff);
+                    } catch (IOException e) {
+                        log("Could not trim " + d + ": " + e);
+                    }
+                    return null;
+                });
+                dropped += n[0];
+            }
+        }
+        return dropped;
+    }
+
+    @Override public void close() {
+        for (Channel c : channels.values()) c.close();
+        synchronized (appenders) { appenders.clear(); }
+    }
+
+    // c just appended, so its segment is open: close the one idle longest past the cap.
+    // Called without c's monitor, since closing takes the other channel's.
+    private void appended(Channel c) {
+        Channel idle = null;
+        synchronized (appenders) {
+            appenders.put(c, Boolean.TRUE);
+            if (appenders.size() > OPEN_APPENDERS) {
+                Iterator<Channel> it = appenders.keySet().iterator();
+                idle = it.next();
+                it.remove();
+            }
+        }
+        if (idle != null) idle.close();
+    }
+
+    private Channel channel(String name) {
+        return channels.computeIfAbsent(name, n -> {
+            try {
+                return new Channel(new File(root, dirName(n)));
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        });
+    }
+
+    // "#general" -> "general", "@alice+bob" -> "dm_alice+bob" ('+' keeps names with '_' apart)
+    private static String dirName(String channel) {
+        return channel.equals("#general") ? "general" : "dm_" + channel.substring(1);
+    }
+
+    private static String segmentName(long firstSeq) { return String.format("%020d.seg", firstSeq); }
+
+    private static void log(String s) { Log.info("STORE", s); }
+
+    /** One segment file holding records firstSeq..lastSeq. */
+    private static final class Segment {
+        final File file;
+        final long firstSeq;
+        long lastSeq;
+        long size;
+        long lastMillis;
+        final TreeMap<Long, Long> index = new TreeMap<>(); // sparse seq -> byte offset
+
+        Segment(File file, long firstSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.lastSeq = firstSeq - 1;
+        }
+
+        void scan() throws IOException {
+            try (var br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String rec;
+                while ((rec = br.readLine()) != null) {
+                    String[] f = rec.split("\t", 3);
+                    if (f.length == 3) {
+                        long seq = Long.parseLong(f[0]);
+                        note(seq, Long.parseLong(f[1]));
+                    }
+                    size += rec.getBytes(StandardCharsets.UTF_8).length + 1;
+                }
+            }
+        }
+
+        // bookkeeping for a record about to start at offset size
+        void note(long seq, long millis) {
+            if ((seq - firstSeq) % INDEX_EVERY == 0) index.put(seq, size);
+            lastSeq = Math.max(lastSeq, seq);
+            lastMillis = millis;
+        }
+    }
+
+    /** All segments of one channel; the last one takes appends. */
+    private final class Channel {
+        private final File dir;
+        private final List<Segment> segments = new ArrayList<>();
+        private OutputStream out;
+        private long lastSeq = 0;
+
+        Channel(File dir) throws IOException {
+            this.dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+            File[] files = dir.listFiles((d, n) -> n.endsWith(".seg"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File f : files) {
+                    Segment s = new Segment(f, Long.parseLong(f.getName().substring(0, f.getName().length() - 4)));
+                    s.scan();
+                    segments.add(s);
+                    lastSeq = Math.max(lastSeq, s.lastSeq);
+                }
+            }
+        }
+
+        private Segment active() { return segments.get(segments.size() - 1); }
+
+        synchronized String append(LongFunction<String> format) {
+            long seq = lastSeq + 1;
+            String line = format.apply(seq);
+            long now = System.currentTimeMillis();
+            byte[] rec = (seq + "\t" + now + "\t" + line + "\n").getBytes(StandardCharsets.UTF_8);
+            try {
+                if (segments.isEmpty() || active().size >= segmentBytes) roll(seq);
+                else if (out == null) out = new BufferedOutputStream(new FileOutputStream(active().file, true));
+                out.write(rec);
+                out.flush();
+            } catch (IOException e) {
+                log("Could not append to " + dir + ": " + e);
+            }
+            if (!segments.isEmpty()) {
+                Segment s = active();
+                s.note(seq, now);
+                s.size += rec.length;
+            }
+            lastSeq = seq;
+            return line;
+        }
+
+        private void roll(long firstSeq) throws IOException {
+            if (out != null) out.close();
+            Segment s = new Segment(new File(dir, segmentName(firstSeq)), firstSeq);
+            out = new BufferedOutputStream(new FileOutputStream(s.file, true));
+            segments.add(s);
+        }
+
+        synchronized long head() { return lastSeq; }
+
+        List<String> read(long since, int max) {
+            long upTo;
+            List<Segment> todo = new ArrayList<>();
+            long from;
+            synchronized (this) {
+                if (since >= lastSeq || max <= 0) return List.of();
+                upTo = lastSeq; // records past this may still be half-written
+                int i = segments.size() - 1;
+                while (i > 0 && segments.get(i).firstSeq > since + 1) i--;
+                todo.addAll(segments.subList(i, segments.size()));
+                if (todo.isEmpty()) return List.of();
+                Map.Entry<Long, Long> e = todo.get(0).index.floorEntry(since + 1);
+                from = (e == null) ? 0 : e.getValue();
+            }
+            List<String> lines = new ArrayList<>();
+            for (Segment s : todo) {
+                if (lines.size() >= max) break;
+                try (var fis = new FileInputStream(s.file)) {
+                    fis.getChannel().position(from);
+                    var br = new BufferedReader(new InputStreamReader(fis, StandardCharsets.UTF_8));
+                    String rec;
+                    while (lines.size() < max && (rec = br.readLine()) != null) {
+                        String[] f = rec.split("\t", 3);
+                        if (f.length < 3) continue;
+                        long seq = Long.parseLong(f[0]);
+                        if (seq > upTo) return lines;
+                        if (seq > since) lines.add(f[2]);
+                    }
+                } catch (FileNotFoundException gone) {
+                    // dropped by retention while we were reading; carry on with the next one
+                } catch (IOException e) {
+                    log("Could not read " + s.file + ": " + e);
+                }
+                from = 0;
+            }
+            return lines;
+        }
+
+        // drops old segments, never the one taking appends
+        synchronized long retain(long cutoff) {
+            long dropped = 0;
+            while (segments.size() > 1 && segments.get(0).lastMillis < cutoff) {
+                Segment s = segments.remove(0);
+                dropped += s.lastSeq - s.firstSeq + 1;
+                if (!s.file.delete()) log("Could not delete " + s.file);
+            }
+            return dropped;
+        }
+
+        // the next append reopens the active segment
+        synchronized void close() {
+            try { if (out != null) out.close(); } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+}
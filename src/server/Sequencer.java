@@ -0,0 +1,103 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Single-writer sequencer for one channel, in the style of a disruptor.
+ *
+ * Any thread may {@link #publish} a message: it claims the next slot of a
+ * pre-allocated ring with one CAS, fills it in and marks it published. One writer
+ * thread takes published slots strictly in claim order and hands runs of up to
+ * MAX_BATCH of them to the handler at once, which assigns their seqs and fans the
+ * whole run out in a single pass. Because only that thread ever appends and sends,
+ * every subscriber sees the channel in the same order as its seqs.
+ *
+ * If the writer falls a full ring behind, publishers wait for space (messages are
+ * never dropped). The writer parks when idle and is unparked by the next publish.
+ */
+final class Sequencer {
+    private static final int MAX_BATCH = 256;
+
+    /** A message in the ring. Reused; the handler must not keep it past onBatch. */
+    static final class Event {
+        volatile long published = -1;
+        String from;
+        String text;
+        LongConsumer onSeq; // told the seq once the message went out (may be null)
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0;
+    private volatile boolean sleeping = false;
+    private final Consumer<List<Event>> handler;
+    private final Thread writer;
+
+    /** {@code handler} runs on the writer thread only. {@code capacity} must be a power of two. */
+    Sequencer(String name, int capacity, Consumer<List<Event>> handler) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++) ring[i] = new Event();
+        this.mask = capacity - 1;
+        this.handler = handler;
+        this.writer = new Thread(this::run, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void publish(String from, String text, LongConsumer onSeq) {
+        long seq;
+        while (true) {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                LockSupport.parkNanos(50_000); // writer is a whole ring behind
+                continue;
+            }
+            if (claimed.compareAndSet(seq, seq + 1)) break;
+        }
+        Event e = ring[(int) (seq & mask)];
+        e.from = from;
+        e.text = text;
+        e.onSeq = onSeq;
+        e.published = seq;
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    /** Messages published but not yet handed to the handler. */
+    long backlog() { return claimed.get() - consumed; }
+
+    private void run() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH);
+        long next = 0;
+        while (true) {
+            Event e;
+            while (batch.size() < MAX_BATCH && (e = ring[(int) (next & mask)]).published == next) {
+                batch.add(e);
+                next++;
+            }
+            if (batch.isEmpty()) {
+                sleeping = true;
+                if (ring[(int) (next & mask)].published != next) LockSupport.parkNanos(10_000_000);
+                sleeping = false;
+                continue;
+            }
+            try {
+                handler.accept(batch);
+            } catch (RuntimeException ex) {
+                Log.warn("SEQ", Thread.currentThread().getName() + " batch failed: " + ex);
+            }
+            for (Event ev : batch) {
+                ev.from = ev.text = null;
+                ev.onSeq = null;
+            }
+            batch.clear();
+            consumed = next;
+        }
+    }
+}
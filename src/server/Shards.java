@@ -0,0 +1,186 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Sessions split across N worker shards, each with its own thread.
+ *
+ * A shard owns its slice of sessions outright: adds, removes and broadcasts all
+ * arrive through the shard's queue and only its thread touches the slice, so
+ * there is no shared session set to lock. A broadcast is N enqueues (one per
+ * shard), after which every shard hands the lines to its own sessions in
+ * parallel. Handing over must only queue, never write to a socket, so one stalled
+ * session can't hold up the rest of its shard. Each shard runs its queue in order,
+ * so two broadcasts reach every session in the order they were submitted. The
+ * optional completion runs on whichever shard finishes last.
+ *
+ * Per-shard counters (sessions, queue depth, broadcasts, latency from enqueue to
+ * handed over) are available through {@link #stats}.
+ */
+final class Shards<S> {
+
+    private static final class Task<S> {
+        final int kind; // ADD, REMOVE, BROADCAST
+        final S session;
+        final List<String> lines;
+        final Completion done;
+        final long enqueued = System.nanoTime();
+
+        Task(int kind, S session, List<String> lines, Completion done) {
+            this.kind = kind;
+            this.session = session;
+            this.lines = lines;
+            this.done = done;
+        }
+    }
+
+    private static final int ADD = 0, REMOVE = 1, BROADCAST = 2;
+
+    /** Counts shards down; the last one to finish runs {@code then}. */
+    private static final class Completion {
+        final AtomicInteger remaining;
+        final Runnable then;
+
+        Completion(int n, Runnable then) {
+            this.remaining = new AtomicInteger(n);
+            this.then = then;
+        }
+
+        void arrive() {
+            if (remaining.decrementAndGet() == 0) then.run();
+        }
+    }
+
+    private final class Shard implements Runnable {
+        final int index;
+        final ConcurrentLinkedQueue<Task<S>> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        volatile boolean sleeping;
+        Thread thread;
+
+        // owned by the shard thread
+        final List<S> sessions = new ArrayList<>();
+        final Map<S, Integer> slot = new IdentityHashMap<>();
+
+        // stats, written by the shard thread only
+        volatile int size;
+        volatile long broadcasts, lines, latencyNanos;
+        final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Shard(int index) { this.index = index; }
+
+        void submit(Task<S> t) {
+            queued.incrementAndGet();
+            queue.add(t);
+            if (sleeping) LockSupport.unpark(thread);
+        }
+
+        @Override public void run() {
+            while (true) {
+                Task<S> t = queue.poll();
+                if (t == null) {
+                    sleeping = true;
+                    if (queue.isEmpty()) LockSupport.parkNanos(10_000_000);
+                    sleeping = false;
+                    continue;
+                }
+                queued.decrementAndGet();
+                try {
+                    switch (t.kind) {
+                        case ADD: add(t.session); break;
+                        case REMOVE: remove(t.session); break;
+                        default: broadcast(t);
+                    }
+                } catch (RuntimeException e) {
+                    Log.warn("SHARD", "shard " + index + " task failed: " + e);
+                }
+            }
+        }
+
+        private void add(S s) {
+            if (slot.containsKey(s)) return;
+            slot.put(s, sessions.size());
+            sessions.add(s);
+            size = sessions.size();
+        }
+
+        // swap-remove keeps the slice dense for the broadcast loop
+        private void remove(S s) {
+            Integer i = slot.remove(s);
+            if (i == null) return;
+            S last = sessions.remove(sessions.size() - 1);
+            if (last != s) {
+                sessions.set(i, last);
+                slot.put(last, i);
+            }
+            size = sessions.size();
+        }
+
+        private void broadcast(Task<S> t) {
+            try {
+                for (S s : sessions) send.accept(s, t.lines);
+            } finally {
+                long took = System.nanoTime() - t.enqueued;
+                broadcasts++;
+                lines += t.lines.size();
+                latencyNanos += took;
+                maxLatencyNanos.accumulateAndGet(took, Math::max);
+                if (t.done != null) t.done.arrive();
+            }
+        }
+    }
+
+    private final List<Shard> shards;
+    private final BiConsumer<S, List<String>> send;
+
+    /** {@code send} queues a run of lines on one session; it runs on shard threads and must not block. */
+    Shards(String name, int n, BiConsumer<S, List<String>> send) {
+        this.send = send;
+        List<Shard> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Shard sh = new Shard(i);
+            sh.thread = new Thread(sh, name + "-" + i);
+            sh.thread.setDaemon(true);
+            list.add(sh);
+        }
+        this.shards = List.copyOf(list);
+        for (Shard sh : shards) sh.thread.start();
+    }
+
+    int size() { return shards.size(); }
+
+    void add(S session) { shardOf(session).submit(new Task<>(ADD, session, null, null)); }
+
+    void remove(S session) { shardOf(session).submit(new Task<>(REMOVE, session, null, null)); }
+
+    /**
+     * Queues {@code lines} (not to be modified afterwards) for every session on every
+     * shard. {@code then}, if given, runs once all shards have handed them over.
+     */
+    void broadcast(List<String> lines, Runnable then) {
+        Completion done = (then == null) ? null : new Completion(shards.size(), then);
+        for (Shard sh : shards) sh.submit(new Task<>(BROADCAST, null, lines, done));
+    }
+
+    /** One line per shard: "SHARD <i> sessions=.. queued=.. broadcasts=.. lines=.. avgUs=.. maxUs=..". */
+    List<String> stats() {
+        List<String> out = new ArrayList<>(shards.size());
+        for (Shard sh : shards) {
+            long b = sh.broadcasts;
+            long avgUs = (b == 0) ? 0 : sh.latencyNanos / b / 1000;
+            long maxUs = sh.maxLatencyNanos.getAndSet(0) / 1000; // max since the previous call
+            out.add("SHARD " + sh.index + " sessions=" + sh.size + " queued=" + sh.queued.get()
+                    + " broadcasts=" + b + " lines=" + sh.lines + " avgUs=" + avgUs + " maxUs=" + maxUs);
+        }
+        return out;
+    }
+
+    private Shard shardOf(S session) {
+        return shards.get(Math.floorMod(System.identityHashCode(session), shards.size()));
+    }
+}
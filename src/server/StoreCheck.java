@@ -0,0 +1,218 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Runs the same checks against every {@link MessageStore} backend, then times them.
+ *
+ *   java -cp out server.StoreCheck [appends]
+ *
+ * The checks are what ChatServer relies on: gapless seqs per channel (also under
+ * concurrent appends), read/readBefore windows that cross segment boundaries, both
+ * spellings of a DM pair landing in one channel, more channels than the file store
+ * keeps open at once, retention that keeps head(), and for SegmentedFileStore the
+ * same lines and head after a reopen, also when retain() runs before anything is
+ * loaded. Segments are kept tiny here and every window offset is tried, so reads
+ * start and end on every boundary. The throughput pass appends {@code appends}
+ * lines (default 100000) and reads them back in SYNC_BATCH-sized windows. Exits 1
+ * if any check failed.
+ */
+final class StoreCheck {
+    private static final int SEGMENT_BYTES = 4096;
+    private static final int WINDOW = 200;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        int appends = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        File tmp = Files.createTempDirectory("storecheck").toFile();
+        try {
+            run("memory", InMemoryStore::new, false);
+            run("segmented", () -> new SegmentedFileStore(new File(tmp, "check"), SEGMENT_BYTES), true);
+            time("memory", new InMemoryStore(), appends);
+            time("segmented", new SegmentedFileStore(new File(tmp, "time"), 1L << 20), appends);
+        } finally {
+            delete(tmp);
+        }
+        System.out.println(failures == 0 ? "all checks passed" : failures + " check(s) FAILED");
+        if (failures > 0) System.exit(1);
+    }
+
+    private static void run(String name, Supplier<MessageStore> open, boolean durable) throws Exception {
+        System.out.println("== " + name);
+        MessageStore s = open.get();
+        appendAndHead(s);
+        concurrentAppends(s);
+        windows(s);
+        dmPairs(s);
+        manyChannels(s);
+        retention(s);
+        if (durable) s = reopen(s, open);
+        s.close();
+    }
+
+    // ---------- checks ----------
+    private static void appendAndHead(MessageStore s) {
+        check(s.head("#general") == 0, "head of an empty channel is 0");
+        check(s.read("#general", 0, 10).isEmpty(), "an empty channel reads nothing");
+        for (int i = 1; i <= 1000; i++) {
+            String line = s.append("#general", seq -> line("#general", seq));
+            if (seqOf(line) != i) { check(false, "append " + i + " got seq " + seqOf(line)); return; }
+        }
+        check(s.head("#general") == 1000, "head is the last seq handed out");
+        check(s.head("@nobody+else") == 0, "other channels are untouched");
+    }
+
+    private static void concurrentAppends(MessageStore s) throws InterruptedException {
+        String ch = "#concurrent";
+        int threads = 4, each = 2000;
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            ts[t] = new Thread(() -> { for (int i = 0; i < each; i++) s.append(ch, seq -> line(ch, seq)); });
+            ts[t].start();
+        }
+        for (Thread t : ts) t.join();
+        check(s.head(ch) == (long) threads * each, "concurrent appends leave head at their count");
+        checkRun(s.read(ch, 0, threads * each), 1, threads * each, "concurrent appends have no gaps or repeats");
+    }
+
+    private static void windows(MessageStore s) {
+        long head = s.head("#general");
+        boolean ok = true;
+        for (long after = 0; after < head && ok; after++) {
+            int max = 1 + (int) (after % 150);
+            List<String> got = s.read("#general", after, max);
+            ok = checkRun(got, after + 1, (int) Math.min(max, head - after), "read after " + after + " max " + max);
+        }
+        check(s.read("#general", head, 10).isEmpty(), "read at head is empty");
+        check(s.read("#general", 4294967296L, 10).isEmpty(), "read past head (2^32) is empty");
+        check(s.read("#general", Long.MAX_VALUE - 1, 10).isEmpty(), "read far past head is empty");
+        check(s.readBefore("#general", Long.MAX_VALUE, 1).size() == 1, "readBefore far past head gives the newest");
+        check(s.read("#general", 0, 0).isEmpty(), "read of max 0 is empty");
+        for (long before = head + 1; before > 0 && ok; before--) {
+            int max = 1 + (int) (before % 120);
+            long last = before - 1, first = Math.max(1, last - max + 1);
+            List<String> got = s.readBefore("#general", before, max);
+            ok = checkRun(got, first, (int) Math.max(0, last - first + 1), "readBefore " + before + " max " + max);
+        }
+    }
+
+    private static void dmPairs(MessageStore s) {
+        String ab = MessageStore.dmChannel("alice", "bob");
+        check(ab.equals(MessageStore.dmChannel("bob", "alice")), "a DM pair has one channel name either way round");
+        for (int i = 0; i < 50; i++) s.append(ab, seq -> line(ab, seq));
+        String ac = MessageStore.dmChannel("alice", "carol");
+        s.append(ac, seq -> line(ac, seq));
+        check(s.readDm("alice", "bob", 0, 100).equals(s.readDm("bob", "alice", 0, 100)), "readDm is the same from both ends");
+        checkRun(s.readDm("bob", "alice", 10, 100), 11, 40, "readDm window");
+        check(s.readDm("alice", "carol", 0, 100).size() == 1, "readDm keeps pairs apart");
+        check(s.readDm("bob", "carol", 0, 100).isEmpty(), "a pair that never talked reads nothing");
+    }
+
+    // more channels than the file store keeps open, appended round-robin so each reopens
+    private static void manyChannels(MessageStore s) {
+        int n = 600, rounds = 3;
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < n; i++) {
+                String ch = MessageStore.dmChannel("many", "u" + i);
+                s.append(ch, seq -> line(ch, seq));
+            }
+        }
+        boolean ok = true;
+        for (int i = 0; i < n && ok; i++) {
+            String ch = MessageStore.dmChannel("many", "u" + i);
+            ok = check(s.head(ch) == rounds, "head of " + ch + " after round-robin appends")
+                    && checkRun(s.read(ch, 0, 10), 1, rounds, "lines of " + ch + " after round-robin appends");
+        }
+    }
+
+    private static void retention(MessageStore s) throws InterruptedException {
+        String ch = "#retained";
+        for (int i = 0; i < 500; i++) s.append(ch, seq -> line(ch, seq));
+        Thread.sleep(50);
+        for (int i = 0; i < 500; i++) s.append(ch, seq -> line(ch, seq));
+        long head = s.head(ch);
+        long dropped = s.retain(25);
+        check(dropped > 0, "retain drops old lines (dropped " + dropped + ")");
+        check(s.head(ch) == head, "retain keeps head()");
+        List<String> left = s.read(ch, 0, 2000);
+        check(!left.isEmpty() && seqOf(left.get(0)) > 1, "retained lines start past seq 1");
+        if (!left.isEmpty()) checkRun(left, seqOf(left.get(0)), (int) (head - seqOf(left.get(0)) + 1), "retained lines run up to head");
+        check(seqOf(s.append(ch, seq -> line(ch, seq))) == head + 1, "seqs are not reused after retain");
+    }
+
+    private static MessageStore reopen(MessageStore s, Supplier<MessageStore> open) {
+        String[] chs = { "#general", "#concurrent", "#retained", MessageStore.dmChannel("alice", "bob") };
+        Map<String, List<String>> before = new HashMap<>();
+        for (String ch : chs) before.put(ch, s.read(ch, 0, Integer.MAX_VALUE));
+        Map<String, Long> heads = new HashMap<>();
+        for (String ch : chs) heads.put(ch, s.head(ch));
+        s.close();
+        MessageStore r = open.get();
+        for (String ch : chs) {
+            check(r.head(ch) == heads.get(ch), "head of " + ch + " survives a restart");
+            check(r.read(ch, 0, Integer.MAX_VALUE).equals(before.get(ch)), "lines of " + ch + " survive a restart");
+        }
+        check(seqOf(r.append("#general", seq -> line("#general", seq))) == heads.get("#general") + 1,
+                "appends continue after a restart");
+        heads.merge("#general", 1L, Long::sum);
+
+        // retain straight after opening, while no channel is loaded
+        r.close();
+        r = open.get();
+        check(r.retain(0) > 0, "retain trims channels that were never loaded");
+        for (String ch : chs) check(r.head(ch) == heads.get(ch), "head of " + ch + " survives retain on disk");
+        return r;
+    }
+
+    // ---------- throughput ----------
+    private static void time(String name, MessageStore s, int n) {
+        try {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) s.append("#general", seq -> line("#general", seq));
+            long t1 = System.nanoTime();
+            long read = 0;
+            for (long after = 0; after < n; after += WINDOW) read += s.read("#general", after, WINDOW).size();
+            long t2 = System.nanoTime();
+            check(read == n, name + ": timed reads saw every line");
+            System.out.printf("%-10s append %,9.0f/s   read %,10.0f lines/s%n",
+                    name, n / ((t1 - t0) / 1e9), read / ((t2 - t1) / 1e9));
+        } finally {
+            s.close();
+        }
+    }
+
+    // ---------- helpers ----------
+    private static String line(String ch, long seq) { return "MSG " + seq + " " + ch + " check line " + seq; }
+
+    private static long seqOf(String line) {
+        int a = line.indexOf(' ') + 1;
+        return Long.parseLong(line.substring(a, line.indexOf(' ', a)));
+    }
+
+    // lines must be exactly seqs first, first+1, ... count of them
+    private static boolean checkRun(List<String> lines, long first, int count, String what) {
+        boolean ok = lines.size() == count;
+        for (int i = 0; ok && i < count; i++) ok = seqOf(lines.get(i)) == first + i;
+        return check(ok, what + " (expected " + count + " from " + first + ", got " + lines.size()
+                + (lines.isEmpty() ? "" : " from " + seqOf(lines.get(0))) + ")");
+    }
+
+    private static boolean check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("  FAIL " + what);
+        }
+        return ok;
+    }
+
+    private static void delete(File f) throws IOException {
+        File[] kids = f.listFiles();
+        if (kids != null) for (File k : kids) delete(k);
+        Files.deleteIfExists(f.toPath());
+    }
+}